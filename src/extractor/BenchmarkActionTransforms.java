@@ -0,0 +1,215 @@
+package extractor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jnibwapi.types.UnitCommandType.UnitCommandTypes;
+import replayparser.model.Player;
+import replayparser.model.RPAction;
+import replayparser.model.RPAction.ReplayActions;
+import replayparser.model.Replay;
+import replayparser.model.ReplayHeader;
+
+/**
+ * Times ExtractActions' action transforms against the versions which removed actions from the
+ * middle of the list one at a time, on a synthetic player with many actions, and checks both
+ * leave the same actions.
+ * <p>
+ * Usage: BenchmarkActionTransforms [number of actions] [rounds]
+ */
+public class BenchmarkActionTransforms {
+	private static final int NUM_CONTROL_GROUPS = 10;
+	/** Highest unit ID to select */
+	private static final int MAX_UNIT_ID = 200;
+	
+	public static void main(String[] args) {
+		int numActions = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		// The transforms log skipped actions, which would swamp the timings
+		Logger.getLogger(ExtractActions.class.getName()).setLevel(Level.WARNING);
+		
+		long oldNanos = 0;
+		long newNanos = 0;
+		for (int round = 0; round < rounds; round++) {
+			Replay oldReplay = syntheticReplay(numActions, round);
+			long start = System.nanoTime();
+			oldRemoveControlGroups(oldReplay);
+			oldRemoveExtraSelects(oldReplay);
+			oldRemoveNonBwapiActions(oldReplay);
+			oldRemoveExtraSelects(oldReplay);
+			oldNanos += System.nanoTime() - start;
+			
+			Replay newReplay = syntheticReplay(numActions, round);
+			start = System.nanoTime();
+			ExtractActions.removeControlGroups(newReplay);
+			ExtractActions.removeExtraSelects(newReplay);
+			ExtractActions.removeNonBwapiActions(newReplay);
+			ExtractActions.removeExtraSelects(newReplay);
+			newNanos += System.nanoTime() - start;
+			
+			String expected = describe(oldReplay);
+			if (!expected.equals(describe(newReplay))) {
+				System.out.println("MISMATCH: the transforms left different actions in round "
+						+ round);
+				System.exit(1);
+			}
+			System.out.println(String.format("Round %d: %d actions transformed to %d", round,
+					numActions, oldReplay.players.get(0).actions.size()));
+		}
+		System.out.println(String.format("Removing in place: %d ms per round",
+				oldNanos / rounds / 1000000));
+		System.out.println(String.format("Rebuilding lists:  %d ms per round",
+				newNanos / rounds / 1000000));
+	}
+	
+	/** @return a replay with one player, whose actions are a mix like those of a real player */
+	private static Replay syntheticReplay(int numActions, long seed) {
+		Random random = new Random(seed);
+		List<RPAction> actions = new ArrayList<>(numActions);
+		for (int i = 0; i < numActions; i++) {
+			int frame = i * 2;
+			int kind = random.nextInt(100);
+			if (kind < 30) {
+				actions.add(new RPAction(frame, "", ReplayActions.Select, randomUnits(random)));
+			} else if (kind < 40) {
+				actions.add(new RPAction(frame, "", ReplayActions.ShiftSelect,
+						randomUnits(random)));
+			} else if (kind < 45) {
+				actions.add(new RPAction(frame, "", ReplayActions.ShiftDeselect,
+						randomUnits(random)));
+			} else if (kind < 55) {
+				actions.add(new RPAction(frame, RPAction.HOTKEY_ACTION_ASSIGN + ","
+						+ random.nextInt(NUM_CONTROL_GROUPS), ReplayActions.Hotkey));
+			} else if (kind < 65) {
+				actions.add(new RPAction(frame, RPAction.HOTKEY_ACTION_SELECT + ","
+						+ random.nextInt(NUM_CONTROL_GROUPS), ReplayActions.Hotkey));
+			} else if (kind < 70) {
+				actions.add(new RPAction(frame, "gg", random.nextBoolean() ?
+						ReplayActions.Game_Chat : ReplayActions.Minimap_Ping));
+			} else {
+				actions.add(new RPAction(frame, UnitCommandTypes.Move, random.nextInt(4096),
+						random.nextInt(4096), -1, random.nextBoolean()));
+			}
+		}
+		ReplayHeader header = new ReplayHeader();
+		header.playerNames[0] = "Synthetic";
+		List<Player> players = new ArrayList<>();
+		players.add(new Player("Synthetic", actions, header));
+		return new Replay(header, players, "", null);
+	}
+	
+	private static HashSet<Integer> randomUnits(Random random) {
+		HashSet<Integer> units = new HashSet<>();
+		int numUnits = 1 + random.nextInt(12);
+		for (int i = 0; i < numUnits; i++) {
+			units.add(random.nextInt(MAX_UNIT_ID));
+		}
+		return units;
+	}
+	
+	/** @return the player's actions, as text which is the same for equal actions */
+	private static String describe(Replay replay) {
+		StringBuilder sb = new StringBuilder();
+		for (RPAction a : replay.players.get(0).actions) {
+			sb.append(a.frame).append(' ').append(a.rAction).append(' ').append(a.unitCommand)
+					.append(' ').append(a.x).append(' ').append(a.y).append(' ')
+					.append(a.delayedAction).append(' ').append(a.stringParams).append(' ')
+					.append(a.selectedUnitIds == null ? null : new TreeSet<>(a.selectedUnitIds))
+					.append('\n');
+		}
+		return sb.toString();
+	}
+	
+	// The transforms as they were, removing actions from the list in place (without logging)
+	
+	private static void oldRemoveControlGroups(Replay replay) {
+		for (Player player : replay.players) {
+			final List<List<Integer>> controlGroups = new ArrayList<>(NUM_CONTROL_GROUPS);
+			final Set<Integer> selectedUnitIds = new HashSet<>();
+			for (int i = 0; i < NUM_CONTROL_GROUPS; i++) {
+				controlGroups.add(new ArrayList<Integer>());
+			}
+			for (int i = 0; i < player.actions.size(); i++) {
+				RPAction action = player.actions.get(i);
+				if (action.rAction == ReplayActions.Hotkey) {
+					String[] params = action.stringParams.split(",");
+					if (params.length != 2) {
+						continue;
+					}
+					if (RPAction.HOTKEY_ACTION_SELECT.equals(params[0])) {
+						selectedUnitIds.clear();
+						int groupNum = Integer.parseInt(params[1]);
+						boolean skip = false;
+						if (groupNum >= NUM_CONTROL_GROUPS) {
+							skip = true;
+						} else {
+							selectedUnitIds.addAll(controlGroups.get(groupNum));
+							skip = selectedUnitIds.isEmpty();
+						}
+						if (skip) {
+							player.actions.remove(i);
+							i--;
+						} else {
+							player.actions.set(i, new RPAction(action.frame, "",
+									ReplayActions.Select, new HashSet<Integer>(selectedUnitIds)));
+						}
+					} else if (RPAction.HOTKEY_ACTION_ASSIGN.equals(params[0])) {
+						int groupNum = Integer.parseInt(params[1]);
+						controlGroups.get(groupNum).clear();
+						controlGroups.get(groupNum).addAll(selectedUnitIds);
+						player.actions.remove(i);
+						i--;
+					}
+				} else if (action.rAction == ReplayActions.Select) {
+					selectedUnitIds.clear();
+					selectedUnitIds.addAll(action.selectedUnitIds);
+				} else if (action.rAction == ReplayActions.ShiftSelect) {
+					selectedUnitIds.addAll(action.selectedUnitIds);
+					player.actions.set(i, new RPAction(action.frame, "",
+							ReplayActions.Select, new HashSet<Integer>(selectedUnitIds)));
+				} else if (action.rAction == ReplayActions.ShiftDeselect) {
+					selectedUnitIds.removeAll(action.selectedUnitIds);
+					player.actions.set(i, new RPAction(action.frame, "",
+							ReplayActions.Select, new HashSet<Integer>(selectedUnitIds)));
+				}
+			}
+		}
+	}
+	
+	private static void oldRemoveExtraSelects(Replay replay) {
+		for (Player player : replay.players) {
+			for (int i = 0; i + 1 < player.actions.size(); i++) {
+				RPAction current = player.actions.get(i);
+				RPAction next = player.actions.get(i + 1);
+				if (current.rAction == ReplayActions.Select
+						&& next.rAction == ReplayActions.Select) {
+					player.actions.remove(i);
+					i--;
+				}
+			}
+			int end = player.actions.size() - 1;
+			if (end >= 0 && player.actions.get(end).rAction == ReplayActions.Select) {
+				player.actions.remove(end);
+			}
+		}
+	}
+	
+	private static void oldRemoveNonBwapiActions(Replay replay) {
+		for (Player player : replay.players) {
+			for (int i = 0; i < player.actions.size(); i++) {
+				RPAction current = player.actions.get(i);
+				if (current.rAction != ReplayActions.None
+						&& current.rAction != ReplayActions.Select) {
+					player.actions.remove(i);
+					i--;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package extractor;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import replayparser.control.BinRepParser;
+import replayparser.model.Replay;
+import replayparser.model.ReplayHeader;
+import util.DbConnection;
+import util.LogManager;
+import util.PipelineStage;
+import util.Util;
+import util.Util.Pair;
+
+/**
+ * Catalogs the replays in the replay folder from their headers alone, without parsing their
+ * commands, and stores the header details (engine, length, map, players, races, game type and
+ * save time) in the replaycatalog table. Large runs can then be planned and filtered (eg. by
+ * matchup or duration) without fully parsing each replay first.
+ * <p>
+ * Only the start of each file is read and decompressed, so this takes a fraction of the time
+ * ExtractActions takes to parse the same replays.
+ */
+public class CatalogReplays {
+	private static final Logger LOGGER = Logger.getLogger(CatalogReplays.class.getName());
+	/** Properties file to load */
+	private static final String PROPERTIES_FILENAME = "extractorConfig.properties";
+	/** Maximum number of parsed headers waiting to be stored, per parsing thread */
+	private static final int QUEUE_SIZE_PER_THREAD = 16;
+	/** Race character of a player whose race isn't Zerg, Terran or Protoss (eg. random) */
+	private static final char UNKNOWN_RACE = '?';
+	
+	/** Number of threads to parse headers with */
+	private final int numThreads;
+	private final File[] replays;
+	
+	public static void main(String[] args) {
+		// Start the logger
+		LogManager.initialise("CatalogReplays");
+		try {
+			CatalogReplays cr = new CatalogReplays();
+			cr.start();
+		} catch (IOException | SQLException e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+	
+	public CatalogReplays() throws IOException {
+		Properties props = Util.loadProperties(PROPERTIES_FILENAME);
+		String replayFolderName = Util.getPropertyNotNull(props, "replay_folder");
+		numThreads = Integer.parseInt(Util.getPropertyNotNull(props, "cr_threads"));
+		
+		final File replayFolder = new File(replayFolderName);
+		if (!replayFolder.isDirectory()) {
+			throw new IOException("'" + replayFolder.getAbsolutePath() + "' is not a folder.");
+		}
+		replays = replayFolder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".rep");
+			}
+		});
+		if (replays == null) {
+			throw new IOException("Cannot read '" + replayFolder.getAbsolutePath() + "'");
+		}
+		Arrays.sort(replays);
+	}
+	
+	/**
+	 * Catalog all the replays. Headers are parsed by {@code cr_threads} threads, and stored in
+	 * batches by one more. This returns only once finished.
+	 */
+	public void start() throws IOException, SQLException {
+		String insertCatalog = "INSERT INTO replaycatalog (ReplayFileName, GameEngine, Frames, " +
+				"SaveTime, MapName, MapWidth, MapHeight, GameType, NumPlayers, PlayerNames, " +
+				"Races, Matchup) VALUES (?, ?, ?, FROM_UNIXTIME(?), ?, ?, ?, ?, ?, ?, ?, ?) " +
+				"ON DUPLICATE KEY UPDATE GameEngine=VALUES(GameEngine), Frames=VALUES(Frames), " +
+				"SaveTime=VALUES(SaveTime), MapName=VALUES(MapName), " +
+				"MapWidth=VALUES(MapWidth), MapHeight=VALUES(MapHeight), " +
+				"GameType=VALUES(GameType), NumPlayers=VALUES(NumPlayers), " +
+				"PlayerNames=VALUES(PlayerNames), Races=VALUES(Races), Matchup=VALUES(Matchup)";
+		LOGGER.info("Cataloging " + replays.length + " replays");
+		try (DbConnection dbc = new DbConnection()) {
+			// Batches are only used by the store stage's one thread
+			PipelineStage<Pair<File, ReplayHeader>, Void> store = new PipelineStage<>("store", 1,
+					numThreads * QUEUE_SIZE_PER_THREAD, fileHeader -> {
+						ReplayHeader header = fileHeader.second;
+						List<String> names = getPlayerNames(header);
+						dbc.batch(insertCatalog)
+								.setString(fileHeader.first.getName())
+								.setInt(header.gameEngine)
+								.setInt(header.gameFrames)
+								.setLong(header.saveTime.getTime() / 1000)
+								.setString(header.mapName)
+								.setInt(header.mapWidth)
+								.setInt(header.mapHeight)
+								.setInt(header.gameType)
+								.setInt(names.size())
+								.setString(Util.join(names))
+								.setString(getRaces(header))
+								.setString(getMatchup(header))
+								.addBatch();
+						return null;
+					}, null);
+			PipelineStage<File, Pair<File, ReplayHeader>> parse = new PipelineStage<>("parse",
+					numThreads, numThreads * QUEUE_SIZE_PER_THREAD, file -> {
+						// Stops after the header section
+						Replay replay = BinRepParser.parseReplay(file, false, false, false, false);
+						if (replay == null) {
+							LOGGER.warning("The replay '" + file.getAbsolutePath()
+									+ "' could not be loaded.");
+							return null;
+						}
+						return new Pair<>(file, replay.header);
+					}, store);
+			store.start();
+			parse.start();
+			try {
+				for (File f : replays) {
+					parse.put(f);
+				}
+				parse.finishInput();
+				parse.awaitDone();
+				store.awaitDone();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while cataloging replays", e);
+			}
+			dbc.flushBatch(insertCatalog);
+			LOGGER.info("Done:" + System.lineSeparator() + parse.getStats()
+					+ System.lineSeparator() + store.getStats());
+		}
+	}
+	
+	/** @return the names of the players in the replay's player slots, including any observers */
+	static List<String> getPlayerNames(ReplayHeader header) {
+		List<String> names = new ArrayList<>();
+		for (String name : header.playerNames) {
+			if (name != null) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+	
+	/** @return the race character of each player, in the order of {@link #getPlayerNames} */
+	static String getRaces(ReplayHeader header) {
+		StringBuilder races = new StringBuilder();
+		for (int i = 0; i < header.playerNames.length; i++) {
+			if (header.playerNames[i] != null) {
+				races.append(getRaceCharacter(header.playerRaces[i]));
+			}
+		}
+		return races.toString();
+	}
+	
+	/**
+	 * @return the races of the replay's players in alphabetical order, separated by "v", eg. "PvT"
+	 *         (like the names of the sc_pvp, sc_pvt... databases)
+	 */
+	static String getMatchup(ReplayHeader header) {
+		return getMatchup(getRaces(header));
+	}
+	
+	/** @return the matchup of players with these race characters. See {@link #getMatchup} */
+	static String getMatchup(String races) {
+		List<Character> sorted = new ArrayList<>();
+		for (char race : races.toCharArray()) {
+			sorted.add(race);
+		}
+		Collections.sort(sorted);
+		return Util.join("v", sorted);
+	}
+	
+	/** @return the character for the race (as in the replay header), eg. 'P', or '?' */
+	static char getRaceCharacter(int race) {
+		return race >= 0 && race < ReplayHeader.RACE_CHARACTERS.length ?
+				ReplayHeader.RACE_CHARACTERS[race] : UNKNOWN_RACE;
+	}
+}
@@ -3,23 +3,45 @@ package extractor;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import replayparser.control.BinRepParser;
 import replayparser.model.Player;
 import replayparser.model.RPAction;
 import replayparser.model.RPAction.ReplayActions;
 import replayparser.model.Replay;
+import util.BulkLoader;
 import util.DbConnection;
+import util.DbConnection.OnDuplicate;
+import util.DbConnection.UncheckedSQLException;
+import util.DbConnectionPool;
+import util.IdAllocator;
+import util.IdCache;
 import util.LogManager;
+import util.PipelineStage;
 import util.Util;
 
 /**
@@ -34,12 +56,44 @@ public class ExtractActions {
 	private static final int NUM_CONTROL_GROUPS = 10;
 	/** Properties file to load */
 	private static final String PROPERTIES_FILENAME = "extractorConfig.properties";
+	/** Number of orphaned unit groups found by {@link #cleanupExtraUnitGroups} to log */
+	private static final int MAX_ORPHANS_TO_PRINT = 50;
+	/** Number of times to try storing a replay whose transaction is picked as a deadlock victim */
+	private static final int MAX_STORE_ATTEMPTS = 3;
+	/** SQLState of a transaction rolled back because of a deadlock (or lock wait timeout) */
+	private static final String SQL_STATE_DEADLOCK = "40001";
+	/** How often to check whether replays being written to the watched folder are finished */
+	private static final long WATCH_POLL_MILLIS = 1000;
+	/** Whether to skip replays the replayfile table records as already extracted */
+	private final boolean skipExtracted;
 	/** Skip all replays with names that come before this. Leave blank to skip none. */
 	private final String firstToParse; // eg. GG14816.rep
 	/** The maximum number of extra/orphaned database entries to remove from one cleanup action */
 	private final int maxNumExtrasToRemove;
+	/** Number of threads for each stage of {@link #start()} */
+	private final int numReadThreads;
+	private final int numParseThreads;
+	private final int numTransformThreads;
+	private final int numStoreThreads;
+	/** Maximum number of replays waiting for each stage */
+	private final int queueSize;
+	/** Seconds between logging the stages' progress */
+	private final int statsInterval;
+	/** Whether to store each replay in the DB for its matchup, instead of in {@code db_name} */
+	private final boolean routeByMatchup;
+	/** Start of the name of each matchup's DB, eg. "sc_" for sc_pvp, sc_pvt... */
+	private final String matchupDbPrefix;
+	/** Id allocator for each DB replays are stored in, each with its own connection */
+	private final Map<String, IdAllocator> idAllocators = new HashMap<>();
+	/** Whether to keep running, extracting replays as they are added to the folder */
+	private final boolean watch;
+	/** How long a replay's size must be unchanged before it is extracted, in watch mode */
+	private final long watchSettleMillis;
 	
+	private final File replayFolder;
 	private final File[] replays;
+	/** Pack to extract the replays from instead of the folder, or null to use the folder */
+	private final File replayPack;
 	
 	public static void main(String[] args) {
 		// Start the logger
@@ -56,12 +110,39 @@ public class ExtractActions {
 	public ExtractActions() throws IOException {
 		Properties props = Util.loadProperties(PROPERTIES_FILENAME);
 		String replayFolderName = Util.getPropertyNotNull(props, "replay_folder");
+		skipExtracted = Boolean.parseBoolean(Util.getPropertyNotNull(props, "ea_skip_extracted"));
 		firstToParse = Util.getPropertyNotNull(props, "ea_first_to_parse");
 		maxNumExtrasToRemove = Integer.parseInt(
 				Util.getPropertyNotNull(props, "ea_max_num_extras_to_remove"));
+		numReadThreads = Integer.parseInt(Util.getPropertyNotNull(props, "ea_read_threads"));
+		numParseThreads = Integer.parseInt(Util.getPropertyNotNull(props, "ea_parse_threads"));
+		numTransformThreads = Integer.parseInt(
+				Util.getPropertyNotNull(props, "ea_transform_threads"));
+		numStoreThreads = Integer.parseInt(Util.getPropertyNotNull(props, "ea_store_threads"));
+		queueSize = Integer.parseInt(Util.getPropertyNotNull(props, "ea_queue_size"));
+		statsInterval = Integer.parseInt(Util.getPropertyNotNull(props, "ea_stats_interval"));
+		routeByMatchup = Boolean.parseBoolean(
+				Util.getPropertyNotNull(props, "ea_route_by_matchup"));
+		matchupDbPrefix = Util.getPropertyNotNull(props, "ea_matchup_db_prefix");
+		watch = Boolean.parseBoolean(Util.getPropertyNotNull(props, "ea_watch"));
+		watchSettleMillis = 1000 * Long.parseLong(
+				Util.getPropertyNotNull(props, "ea_watch_settle_seconds"));
+		String replayPackName = Util.getPropertyNotNull(props, "ea_replay_pack");
 		
+		replayFolder = new File(replayFolderName);
+		if (!replayPackName.isEmpty()) {
+			replayPack = new File(replayPackName);
+			if (watch) {
+				throw new IOException("Only replay folders can be watched, not packs");
+			}
+			if (!replayPack.canRead()) {
+				throw new IOException("Cannot read '" + replayPack.getAbsolutePath() + "'");
+			}
+			replays = new File[0];
+			return;
+		}
+		replayPack = null;
 		LOGGER.info("Opening and checking folders");
-		final File replayFolder = new File(replayFolderName);
 		if (!replayFolder.canRead()) {
 			throw new IOException("Cannot read '" + replayFolder.getAbsolutePath() + "'");
 		}
@@ -74,55 +155,292 @@ public class ExtractActions {
 				return name.endsWith(".rep");
 			}
 		});
-		if (replays == null || replays.length == 0) {
+		if (replays == null || (replays.length == 0 && !watch)) {
 			throw new IOException("'" + replayFolder.getAbsolutePath()
 					+ "' contains no .rep files.");
 		}
+		// Process in the same order every time, whatever order the file system lists them in
+		Arrays.sort(replays);
 	}
 	
-	/** Start the Extractor. This returns only once finished. */
+	/**
+	 * Start the Extractor. This returns only once finished.
+	 * <p>
+	 * Replays go through a pipeline of stages: read the file, parse it, transform the actions,
+	 * then store them. Each stage has its own threads ({@code ea_*_threads}), and the stages are
+	 * connected by queues of up to {@code ea_queue_size} replays, so the stages overlap and only
+	 * the slowest one limits the throughput. Their progress is logged every
+	 * {@code ea_stats_interval} seconds, which shows which stage that is: its threads are always
+	 * busy and its queue is full.
+	 * <p>
+	 * Each store thread writes through its own DB connection, and each replay is stored in its
+	 * own transaction from only its own data, so what is stored doesn't depend on the number of
+	 * threads (though the order replays finish in, and so their IDs, may). A replay which fails
+	 * in any stage is logged and dropped without affecting the others.
+	 * <p>
+	 * Each replay stored is recorded in the replayfile table (see {@link ReplayManifest}), so if
+	 * {@code ea_skip_extracted} is set, a restarted extraction skips the replays already stored
+	 * and unchanged since, and only extracts the new, failed or interrupted ones. Files with the
+	 * same contents as a replay already extracted are recorded as duplicates and not parsed.
+	 * <p>
+	 * If {@code ea_route_by_matchup} is set, the replays can be of any matchup, and each is
+	 * stored in its matchup's DB (eg. sc_pvt for {@code ea_matchup_db_prefix} "sc_"), which must
+	 * already exist. The store threads switch DBs as needed, so all the matchups are extracted in
+	 * the same run. The replayfile table of {@code db_name} records the replays of all of them.
+	 * <p>
+	 * If {@code ea_watch} is set, this never returns: once the replays already in the folder are
+	 * queued, the folder is watched, and each replay added (or rewritten) is extracted once it has
+	 * finished being written. Stop it by ending the process; replays being stored are rolled back,
+	 * and extracted on the next run. Orphaned unit groups are only cleaned up by batch runs.
+	 * <p>
+	 * If {@code ea_replay_pack} is set, the replays are read from that pack (see
+	 * {@link ReplayPack}) instead of the folder. Replays already extracted are then skipped by
+	 * comparing the pack index's hashes with the manifest's.
+	 */
 	public void start() throws IOException, SQLException {
-		DbConnection dbc = new DbConnection();
-		// Read the actions from all replay files in the folder
-		// Then add them all to the database
-		for (File f : replays) {
-			if (firstToParse.compareTo(f.getName()) > 0) {
-				// Skip everything up to the given file
-				LOGGER.info("Skipping " + f.getName());
-				continue;
+		// One connection per store thread. The id allocators have their own.
+		DbConnectionPool pool = new DbConnectionPool(numStoreThreads);
+		ReplayManifest manifest;
+		try (DbConnection dbc = pool.borrow()) {
+			manifest = ReplayManifest.load(dbc);
+		}
+		ReplayPack pack = replayPack != null ? new ReplayPack(replayPack) : null;
+		// A job which fails in any stage is recorded, so its claim on its contents is given up
+		PipelineStage.FailureHandler<ReplayJob> recordFailure = job -> {
+			// Nothing was claimed if it wasn't read, and one already extracted is still done
+			if (job.fileInfo != null && !job.alreadyExtracted) {
+				recordFailure(pool, manifest, job.fileInfo);
+			}
+		};
+		PipelineStage<ReplayJob, Void> store = new PipelineStage<>("store", numStoreThreads,
+				queueSize, job -> {
+					// Any transaction left open is rolled back when the connection is returned
+					try (DbConnection dbc = pool.borrow()) {
+						store(dbc, manifest, job);
+					}
+					return null;
+				}, recordFailure, null);
+		PipelineStage<ReplayJob, ReplayJob> transform = new PipelineStage<>("transform",
+				numTransformThreads, queueSize, this::transform, recordFailure, store);
+		PipelineStage<ReplayJob, ReplayJob> parse = new PipelineStage<>("parse",
+				numParseThreads, queueSize, this::parse, recordFailure, transform);
+		PipelineStage<ReplayJob, ReplayJob> read = new PipelineStage<>("read",
+				numReadThreads, queueSize, job -> read(manifest, job), recordFailure, parse);
+		List<PipelineStage<?, ?>> stages = Arrays.asList(read, parse, transform, store);
+		for (PipelineStage<?, ?> stage : stages) {
+			stage.start();
+		}
+		ScheduledExecutorService statsLogger = Executors.newSingleThreadScheduledExecutor();
+		statsLogger.scheduleAtFixedRate(() -> logStats(stages), statsInterval, statsInterval,
+				TimeUnit.SECONDS);
+		try {
+			int numUnchanged = 0;
+			if (pack != null) {
+				for (ReplayPack.Entry packed : pack.getEntries()) {
+					if (firstToParse.compareTo(packed.name) > 0) {
+						continue;
+					}
+					ReplayManifest.Entry fileInfo = new ReplayManifest.Entry(packed.name,
+							packed.length, replayPack.lastModified(), packed.hash);
+					if (skipExtracted && manifest.isDone(fileInfo)) {
+						numUnchanged++;
+						continue;
+					}
+					read.put(new ReplayJob(packed.name, pack.getData(packed), fileInfo));
+				}
+			}
+			for (File f : replays) {
+				if (firstToParse.compareTo(f.getName()) > 0) {
+					// Skip everything up to the given file
+					LOGGER.info("Skipping " + f.getName());
+					continue;
+				}
+				if (skipExtracted && manifest.isUnchanged(f)) {
+					LOGGER.fine("Skipping " + f.getName() + ", which was already extracted");
+					numUnchanged++;
+					continue;
+				}
+				read.put(new ReplayJob(f));
 			}
-			LOGGER.info("Processing " + f.getName());
-			// Load and analyse the replay file
-			Replay replay = BinRepParser.parseReplay(f, true, false, true, false);
-			if (replay != null) {
-				// Convert control groups into selects before removing extra selects
-				removeControlGroups(replay);
-				// Remove selects before removing players, as observers may still select a lot
-				removeExtraSelects(replay);
-				// Remove observers before determining winner
-				removeExtraPlayers(replay);
-				// Determine winner before removing non-BWAPI actions (like leaveGame)
-				Player winner = determineWinner(replay);
-				// Ignore Ally/Vision/Ping/Chat etc for now
-				removeNonBwapiActions(replay);
-				// Remove selects again now that more actions are removed
-				removeExtraSelects(replay);
-				storeToDatabase(dbc, replay, f.getName(), winner);
-			} else {
-				LOGGER.warning("The replay '" + f.getAbsolutePath() + "' could not be loaded.");
+			LOGGER.info("Skipped " + numUnchanged + " unchanged replays of the "
+					+ manifest.getNumDone() + " already extracted");
+			if (watch) {
+				watchReplayFolder(manifest, read);
 			}
+			read.finishInput();
+			for (PipelineStage<?, ?> stage : stages) {
+				stage.awaitDone();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for replays to be stored", e);
+		} finally {
+			statsLogger.shutdown();
+			if (pack != null) {
+				pack.close();
+			}
+		}
+		logStats(stages);
+		for (String dbName : idAllocators.keySet()) {
+			cleanupExtraUnitGroups(dbName);
 		}
-		cleanupExtraUnitGroups();
-		dbc.close();
+		for (IdAllocator ids : idAllocators.values()) {
+			ids.close();
+		}
+		pool.close();
 		LOGGER.info("Done");
 	}
 	
+	/**
+	 * Queue each replay created or changed in the replay folder once its size has stopped changing
+	 * for {@link #watchSettleMillis}, so replays still being copied aren't read. Only returns if
+	 * the folder can no longer be watched.
+	 */
+	private void watchReplayFolder(ReplayManifest manifest, PipelineStage<ReplayJob, ?> read)
+			throws IOException, InterruptedException {
+		Path folder = replayFolder.toPath();
+		// Replays being written: their size when last checked, and when that changed
+		Map<Path, long[]> pending = new HashMap<>();
+		try (WatchService watcher = folder.getFileSystem().newWatchService()) {
+			folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			LOGGER.info("Watching " + replayFolder.getAbsolutePath() + " for new replays");
+			while (true) {
+				WatchKey key = watcher.poll(WATCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				long now = System.currentTimeMillis();
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							// Too many changes at once, so look at every replay instead
+							LOGGER.warning("Missed changes to the replay folder. Checking all.");
+							for (File f : replayFolder.listFiles()) {
+								if (f.getName().endsWith(".rep") && !manifest.isUnchanged(f)) {
+									pending.put(f.toPath(), new long[] { -1, now });
+								}
+							}
+							continue;
+						}
+						Path file = folder.resolve((Path) event.context());
+						if (file.getFileName().toString().endsWith(".rep")) {
+							pending.put(file, new long[] { -1, now });
+						}
+					}
+					if (!key.reset()) {
+						LOGGER.severe("Replay folder can no longer be watched");
+						return;
+					}
+				}
+				Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Path, long[]> entry = it.next();
+					File f = entry.getKey().toFile();
+					long[] sizeAndTime = entry.getValue();
+					if (!f.isFile()) {
+						it.remove();
+					} else if (f.length() != sizeAndTime[0]) {
+						sizeAndTime[0] = f.length();
+						sizeAndTime[1] = now;
+					} else if (now - sizeAndTime[1] >= watchSettleMillis) {
+						it.remove();
+						LOGGER.info("Found new replay " + f.getName());
+						read.put(new ReplayJob(f));
+					}
+				}
+			}
+		}
+	}
+	
+	private static void logStats(List<PipelineStage<?, ?>> stages) {
+		StringBuilder sb = new StringBuilder("Pipeline progress:");
+		for (PipelineStage<?, ?> stage : stages) {
+			sb.append(System.lineSeparator()).append(stage.getStats());
+		}
+		LOGGER.info(sb.toString());
+	}
+	
+	/**
+	 * Pipeline stage: read the replay file into memory (replays in a pack are already mapped). A
+	 * file which was only touched since it was extracted (with the same contents), or which has
+	 * the same contents as another replay, isn't parsed, just recorded by the store stage.
+	 */
+	private ReplayJob read(ReplayManifest manifest, ReplayJob job) throws IOException {
+		if (job.file != null) {
+			byte[] data = Files.readAllBytes(job.file.toPath());
+			job.data = ByteBuffer.wrap(data);
+			job.fileInfo = new ReplayManifest.Entry(job.file, data);
+		}
+		if (skipExtracted && manifest.isDone(job.fileInfo)) {
+			LOGGER.info("Skipping " + job.name + ", which was already extracted");
+			job.data = null;
+			job.alreadyExtracted = true;
+			return job;
+		}
+		job.duplicateOf = manifest.claim(job.fileInfo);
+		if (job.duplicateOf != null) {
+			LOGGER.info("Skipping " + job.name + ", which is a duplicate of " + job.duplicateOf);
+			job.data = null;
+		}
+		return job;
+	}
+	
+	/**
+	 * Record that the replay file failed in a stage of the pipeline, giving up its claim on its
+	 * contents so another file with the same contents is extracted instead of being taken as a
+	 * duplicate of a replay which was never stored
+	 */
+	static void recordFailure(DbConnectionPool pool, ReplayManifest manifest,
+			ReplayManifest.Entry fileInfo) throws SQLException {
+		try (DbConnection dbc = pool.borrow()) {
+			manifest.markFailed(dbc, fileInfo);
+		}
+	}
+	
+	/**
+	 * Pipeline stage: parse the replay. One which can't be parsed is passed on without a replay,
+	 * so it is recorded as failed.
+	 */
+	private ReplayJob parse(ReplayJob job) {
+		if (job.alreadyExtracted || job.duplicateOf != null) {
+			return job;
+		}
+		LOGGER.info("Processing " + job.name);
+		// Load and analyse the replay file
+		job.replay = BinRepParser.parseReplay(job.data, true, false, true, false);
+		job.data = null;
+		if (job.replay == null) {
+			LOGGER.warning("The replay '" + (job.file != null ? job.file.getAbsolutePath()
+					: job.name) + "' could not be loaded.");
+		}
+		return job;
+	}
+	
+	/** Pipeline stage: simplify the replay's actions and find the winner */
+	private ReplayJob transform(ReplayJob job) {
+		Replay replay = job.replay;
+		if (replay == null) {
+			return job;
+		}
+		// Convert control groups into selects before removing extra selects
+		removeControlGroups(replay);
+		// Remove selects before removing players, as observers may still select a lot
+		removeExtraSelects(replay);
+		// Remove observers before determining winner
+		removeExtraPlayers(replay);
+		// Determine winner before removing non-BWAPI actions (like leaveGame)
+		job.winner = determineWinner(replay);
+		// Ignore Ally/Vision/Ping/Chat etc for now
+		removeNonBwapiActions(replay);
+		// Remove selects again now that more actions are removed
+		removeExtraSelects(replay);
+		return job;
+	}
+	
 	/**
 	 * Remove hotkey and extra select actions to simplify the model. After this is run, all hotkey,
 	 * shift-select, and shift-deselect actions will be replaced by regular select actions, and any
 	 * sequences of 2+ select actions will be replaced by just the last select action.
 	 */
-	private void removeControlGroups(Replay replay) {
+	static void removeControlGroups(Replay replay) {
 		for (Player player : replay.players) {
 			// Initialise the control groups & selected units
 			final List<ControlGroup> controlGroups = new ArrayList<>(NUM_CONTROL_GROUPS);
@@ -131,10 +449,10 @@ public class ExtractActions {
 				controlGroups.add(new ControlGroup());
 			}
 			
-			// For each action
+			// For each action, add it (or its replacement) to the new list unless it is removed
+			final List<RPAction> newActions = new ArrayList<>(player.actions.size());
 			int lastFrame = 0;
-			for (int i = 0; i < player.actions.size(); i++) {
-				RPAction action = player.actions.get(i);
+			for (RPAction action : player.actions) {
 				// Check the frames are actually in increasing order
 				if (action.frame < lastFrame) {
 					LOGGER.severe("Frames not in order!");
@@ -145,6 +463,7 @@ public class ExtractActions {
 					String[] params = action.stringParams.split(",");
 					if (params.length != 2) {
 						LOGGER.severe("Hotkey action with " + params.length + " params skipped.");
+						newActions.add(action);
 						continue;
 					}
 					if (RPAction.HOTKEY_ACTION_SELECT.equals(params[0])) {
@@ -165,13 +484,9 @@ public class ExtractActions {
 								// dead units.
 							}
 						}
-						if (skip) {
-							// Remove the hotkey select and move the index back
-							player.actions.remove(i);
-							i--;
-						} else {
+						if (!skip) {
 							// Replace the Hotkey select with a regular unit select
-							player.actions.set(i, new RPAction(action.frame, "",
+							newActions.add(new RPAction(action.frame, "",
 									RPAction.ReplayActions.Select,
 									new HashSet<Integer>(selectedUnitIds)));
 						}
@@ -179,28 +494,30 @@ public class ExtractActions {
 						int groupNum = Integer.parseInt(params[1]);
 						controlGroups.get(groupNum).unitIds.clear();
 						controlGroups.get(groupNum).unitIds.addAll(selectedUnitIds);
-						// Remove the hotkey assign and move the index back
-						player.actions.remove(i);
-						i--;
+						// The hotkey assign is removed
 					} else {
 						LOGGER.severe("Hotkey action wasn't select or assign?!");
-						continue;
+						newActions.add(action);
 					}
 				} else if (action.rAction == RPAction.ReplayActions.Select) {
 					selectedUnitIds.clear();
 					selectedUnitIds.addAll(action.selectedUnitIds);
+					newActions.add(action);
 				} else if (action.rAction == RPAction.ReplayActions.ShiftSelect) {
 					selectedUnitIds.addAll(action.selectedUnitIds);
 					// Replace the shift-select with a regular unit select
-					player.actions.set(i, new RPAction(action.frame, "",
+					newActions.add(new RPAction(action.frame, "",
 							RPAction.ReplayActions.Select, new HashSet<Integer>(selectedUnitIds)));
 				} else if (action.rAction == RPAction.ReplayActions.ShiftDeselect) {
 					selectedUnitIds.removeAll(action.selectedUnitIds);
 					// Replace the shift-deselect with a regular unit select
-					player.actions.set(i, new RPAction(action.frame, "",
+					newActions.add(new RPAction(action.frame, "",
 							RPAction.ReplayActions.Select, new HashSet<Integer>(selectedUnitIds)));
+				} else {
+					newActions.add(action);
 				}
 			}
+			setActions(player, newActions);
 		}
 	}
 	
@@ -209,23 +526,20 @@ public class ExtractActions {
 	 * repeated select actions cannot have any effect (usually just a result of the player checking
 	 * on their units).
 	 */
-	private void removeExtraSelects(Replay replay) {
+	static void removeExtraSelects(Replay replay) {
 		for (Player player : replay.players) {
-			for (int i = 0; i + 1 < player.actions.size(); i++) {
+			final List<RPAction> newActions = new ArrayList<>(player.actions.size());
+			for (int i = 0; i < player.actions.size(); i++) {
 				RPAction current = player.actions.get(i);
-				RPAction next = player.actions.get(i + 1);
+				// Keep only the last select in each sequence, and no trailing select
 				if (current.rAction == RPAction.ReplayActions.Select
-						&& next.rAction == RPAction.ReplayActions.Select) {
-					// Remove and decrease i accordingly
-					player.actions.remove(i);
-					i--;
+						&& (i + 1 == player.actions.size() || player.actions.get(i + 1).rAction
+								== RPAction.ReplayActions.Select)) {
+					continue;
 				}
+				newActions.add(current);
 			}
-			// Remove trailing select
-			int end = player.actions.size() - 1;
-			if (end >= 0 && player.actions.get(end).rAction == RPAction.ReplayActions.Select) {
-				player.actions.remove(end);
-			}
+			setActions(player, newActions);
 		}
 	}
 	
@@ -318,16 +632,15 @@ public class ExtractActions {
 	 * Remove actions containing ReplayActions (not convertable to BWAPI-compatible actions) except
 	 * SELECT, leaving only BWAPI-compatible actions (Orders, UnitCommands, and SELECT).
 	 */
-	private void removeNonBwapiActions(Replay replay) {
+	static void removeNonBwapiActions(Replay replay) {
 		for (Player player : replay.players) {
 			// Go through and remove ReplayActions besides SELECT
-			for (int i = 0; i < player.actions.size(); i++) {
-				RPAction current = player.actions.get(i);
-				if (current.rAction != RPAction.ReplayActions.None
-						&& current.rAction != RPAction.ReplayActions.Select) {
-					// Remove and decrease i accordingly
-					player.actions.remove(i);
-					i--;
+			final List<RPAction> newActions = new ArrayList<>(player.actions.size());
+			for (RPAction current : player.actions) {
+				if (current.rAction == RPAction.ReplayActions.None
+						|| current.rAction == RPAction.ReplayActions.Select) {
+					newActions.add(current);
+				} else {
 					// Notify about skipping interesting actions
 					if (current.rAction != RPAction.ReplayActions.Ally
 							&& current.rAction != RPAction.ReplayActions.Game_Chat
@@ -338,19 +651,158 @@ public class ExtractActions {
 					}
 				}
 			}
+			setActions(player, newActions);
 		}
 	}
 	
-	private void storeToDatabase(DbConnection dbc, Replay replay, String fileName, Player winner) {
-		try {
+	/**
+	 * Replace the player's actions with the transformed list. Each transform builds a new list in
+	 * one pass, as removing actions from the middle of the list one at a time is quadratic.
+	 */
+	private static void setActions(Player player, List<RPAction> actions) {
+		player.actions.clear();
+		player.actions.addAll(actions);
+	}
+	
+	/**
+	 * Pipeline stage: store the replay (in its matchup's DB, if routing by matchup), and record
+	 * the outcome in the manifest
+	 */
+	private void store(DbConnection dbc, ReplayManifest manifest, ReplayJob job)
+			throws IOException, SQLException {
+		if (job.alreadyExtracted) {
+			manifest.updateFileInfo(dbc, job.fileInfo);
+			return;
+		}
+		if (job.duplicateOf != null) {
+			manifest.markDuplicate(dbc, job.fileInfo, job.duplicateOf);
+			return;
+		}
+		String dbName = null;
+		if (job.replay != null) {
+			dbName = routeByMatchup ? getMatchupDatabase(job) : dbc.getDefaultDatabase();
+		}
+		if (dbName == null) {
+			manifest.markFailed(dbc, job.fileInfo);
+			return;
+		}
+		dbc.useDatabase(dbName);
+		if (!storeToDatabase(dbc, getIdAllocator(dbName), manifest, job)) {
+			manifest.markFailed(dbc, job.fileInfo);
+		}
+	}
+	
+	/**
+	 * @return the name of the DB for the matchup of the replay's players (eg. sc_pvt), or null if
+	 *         it isn't a game between two players of known races
+	 */
+	private String getMatchupDatabase(ReplayJob job) {
+		StringBuilder races = new StringBuilder();
+		for (Player player : job.replay.players) {
+			races.append(CatalogReplays.getRaceCharacter(player.race));
+		}
+		String matchup = CatalogReplays.getMatchup(races.toString());
+		if (job.replay.players.size() != 2 || races.indexOf("?") != -1) {
+			LOGGER.warning("No matchup DB for " + job.name + ", which is " + matchup);
+			return null;
+		}
+		return matchupDbPrefix + matchup.toLowerCase();
+	}
+	
+	/** Get the id allocator for the DB, opening a connection for it the first time */
+	private synchronized IdAllocator getIdAllocator(String dbName)
+			throws IOException, SQLException {
+		IdAllocator ids = idAllocators.get(dbName);
+		if (ids == null) {
+			DbConnection dbc = new DbConnection();
+			dbc.useDatabase(dbName);
+			ids = new IdAllocator(dbc);
+			idAllocators.put(dbName, ids);
+		}
+		return ids;
+	}
+	
+	/**
+	 * Store the replay's players, units, unit groups and actions. Unit group and action ids are
+	 * allocated by ids, so groups and actions can be sent in batches without waiting for their ids.
+	 * 
+	 * @return whether the replay was stored
+	 */
+	private boolean storeToDatabase(DbConnection dbc, IdAllocator ids, ReplayManifest manifest,
+			ReplayJob job) {
+		String fileName = job.name;
+		boolean stored = false;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				stored = storeToDatabaseOnce(dbc, ids, manifest, job);
+				break;
+			} catch (SQLException e) {
+				try {
+					dbc.rollback();
+				} catch (SQLException e1) {
+					LOGGER.log(Level.SEVERE, "Error rolling back " + fileName, e1);
+				}
+				// Other workers' transactions can lock the same index ranges (eg. at the end of
+				// the action table), so InnoDB may abort one of them. Nothing was kept, so retry.
+				if (SQL_STATE_DEADLOCK.equals(e.getSQLState()) && attempt < MAX_STORE_ATTEMPTS) {
+					LOGGER.warning("Deadlock storing " + fileName + ", retrying: "
+							+ e.getMessage());
+					continue;
+				}
+				LOGGER.log(Level.SEVERE, e.getMessage(), e);
+				break;
+			}
+		}
+		dbc.getProfiler().dump(fileName);
+		return stored;
+	}
+	
+	/**
+	 * Store the replay in one transaction, which is left for the caller to roll back on error. The
+	 * replay is marked done in the manifest in the same transaction.
+	 * 
+	 * @return whether the replay was stored
+	 */
+	private boolean storeToDatabaseOnce(DbConnection dbc, IdAllocator ids,
+			ReplayManifest manifest, ReplayJob job) throws SQLException {
+		Replay replay = job.replay;
+		String fileName = job.name;
+		Player winner = job.winner;
+		// Note delayed is a keyword in mysql so needs quotes
+		String insertAction = "INSERT INTO action (actionid, playerreplayid, frame, " +
+				"unitcommandtypeid, ordertypeid, unitgroupid, targetid, targetx, targety, " +
+				"`delayed`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+		String findAction = "SELECT actionid FROM action WHERE playerreplayid=? AND frame=? AND " +
+				"unitcommandtypeid=? AND ordertypeid=? AND unitgroupid=? AND targetid=? AND " +
+				"targetx=? AND targety=? AND `delayed`=?";
+		String insertUnitGroup = "INSERT INTO unitgroup (unitgroupid, unitid, grouphash) " +
+				"VALUES (?, ?, ?)";
+		IdCache idCache = dbc.getIdCache();
+		boolean bulkLoad = dbc.isBulkLoadEnabled();
+		try (BulkLoader unitLoader = bulkLoad ?
+						dbc.bulkLoader("unit", "playerreplayid, unitreplayid") : null;
+				BulkLoader groupLoader = bulkLoad ?
+						dbc.bulkLoader("unitgroup", "unitgroupid, unitid, grouphash") : null;
+				BulkLoader actionLoader = bulkLoad ? dbc.bulkLoader("action", "actionid, " +
+						"playerreplayid, frame, unitcommandtypeid, ordertypeid, unitgroupid, " +
+						"targetid, targetx, targety, `delayed`") : null) {
+			// Store the whole replay or none of it
+			dbc.beginTransaction();
 			List<Object> data = new ArrayList<>();
 			Set<Long> allDbPlayerReplayIds = new HashSet<>();
+			int numUnits = 0;
+			int numActions = 0;
 			// Add Replay
 			data.clear();
 			data.add(fileName);
 			data.add(replay.header.gameFrames);
-			long replayId = dbc.executeInsert(
-					"INSERT INTO replay (replayname, duration) VALUES (?, ?)", data, true);
+			long replayId = dbc.executeUpsert(
+					"INSERT INTO replay (replayname, duration) VALUES (?, ?)", data, "replayid");
+			// So duplicates of this replay can be found under other names
+			dbc.stmt("UPDATE replay SET contenthash=? WHERE replayid=?")
+					.setString(job.fileInfo.hash)
+					.setLong(replayId)
+					.executeUpdate();
 			// Add PlayerReplay
 			for (Player player : replay.players) {
 				// Store all actionIds for this playerreplay
@@ -370,10 +822,23 @@ public class ExtractActions {
 								+ " VALUES (?, ?, ?, ?)", data, true);
 				if (playerReplayId == -1) {
 					LOGGER.severe("Couldn't get/insert playerreplay: " + Util.join(data));
-					return;
+					dbc.rollback();
+					return false;
 				}
 				allDbPlayerReplayIds.add(playerReplayId);
 				
+				// If this player has no actions stored yet (the usual case), they can all be sent
+				// in batches without checking for existing copies
+				data.clear();
+				data.add(playerReplayId);
+				boolean actionsInDb = dbc.queryFirstColumn(
+						"SELECT actionid FROM action WHERE playerreplayid=? LIMIT 1", data) != -1;
+				boolean bulk = bulkLoad && !actionsInDb;
+				addUnits(dbc, bulk ? unitLoader : null, player, playerReplayId);
+				// Groups are only ever made of one player's units, so all the groups the player's
+				// actions could use are known from here on
+				UnitGroupIndex groups = UnitGroupIndex.load(dbc, playerReplayId);
+				
 				long lastSelectedGroupId = -1;
 				
 				// Add the player's Actions
@@ -384,48 +849,46 @@ public class ExtractActions {
 						List<Long> dbUnitIds = new ArrayList<>();
 						// Add the action's units
 						for (int repUnitId : action.selectedUnitIds) {
-							data.clear();
-							data.add(playerReplayId);
-							// Getting UnitTypes from BWAPI instead of the replay so leave as
-							// default here (DB will default to UnitTypes.None == 228)
-							data.add(repUnitId);
-							long dbUnitId = dbc.executeInsert("INSERT INTO unit (playerreplayid," +
-									" unitreplayid) VALUES (?, ?)", data, true);
+							// Units are selected many times, so usually already known
+							long dbUnitId = idCache.get("unit", playerReplayId, repUnitId);
+							if (dbUnitId == -1) {
+								// Getting UnitTypes from BWAPI instead of the replay so leave as
+								// default here (DB will default to UnitTypes.None == 228)
+								dbUnitId = dbc.upsert("INSERT INTO unit (playerreplayid," +
+										" unitreplayid) VALUES (?, ?)", "unitid")
+										.setLong(playerReplayId)
+										.setInt(repUnitId)
+										.executeUpsert();
+								idCache.put(dbUnitId, "unit", playerReplayId, repUnitId);
+							}
 							dbUnitIds.add(dbUnitId);
 						}
 						allDbUnitIds.addAll(dbUnitIds);
-						// Find the group if it exists already
-						// Works by finding a unitgroupid associated with all units in the group
-						// (and no units not in the group, using the "having count" part)
+						// Find the group if it exists already (with exactly these units)
 						// NOTE: Groups can have more than 12 units because if a unit dies it isn't
 						// recorded in the replay, so you can keep adding units to a group as the
 						// old units die off. Groups can also have 0 units (eg. in GG11.rep)
-						data.clear();
-						data.addAll(dbUnitIds);
-						String query = "SELECT unitgroupid FROM unitgroup ";
-						if (dbUnitIds.size() > 0) {
-							query += "WHERE ";
-							for (int i = 0; i < dbUnitIds.size() - 1; i++) {
-								query += "unitid=? OR ";
-							}
-							query += "unitid=? ";
-						}
-						data.add(dbUnitIds.size());
-						query += "GROUP BY unitgroupid HAVING COUNT(unitid)=?";
-						long groupId = dbc.queryFirstColumn(query, data);
+						Set<Long> groupKey = new HashSet<>(dbUnitIds);
+						long groupId = groups.find(groupKey);
 						// Add the group if it wasn't found
-						if (groupId == -1) {
-							for (long dbUnitId : dbUnitIds) {
+						if (groupId == -1 && !groupKey.isEmpty()) {
+							// All the group's rows can be sent at once, as its id is known already
+							groupId = ids.next("unitgroup", "unitgroupid");
+							long groupHash = UnitGroupIndex.hash(groupKey);
+							if (bulk) {
+								for (long dbUnitId : groupKey) {
+									groupLoader.put(groupId).put(dbUnitId).put(groupHash).endRow();
+								}
+							} else {
 								data.clear();
-								if (groupId == -1) {
-									data.add(null);
-								} else {
+								for (long dbUnitId : groupKey) {
 									data.add(groupId);
+									data.add(dbUnitId);
+									data.add(groupHash);
 								}
-								data.add(dbUnitId);
-								groupId = dbc.executeInsert("INSERT INTO unitgroup " +
-										"(unitgroupid, unitid) VALUES (?, ?)", data, false);
+								dbc.executeMultiInsert(insertUnitGroup, data, OnDuplicate.ERROR);
 							}
+							groups.put(groupKey, groupId);
 						}
 						if (groupId == -1) {
 							// Group can't be made, usually because it's empty
@@ -451,6 +914,39 @@ public class ExtractActions {
 						continue;
 					}
 					// Store the action
+					if (bulk) {
+						long dbActionId = ids.next("action", "actionid");
+						allDbActionIds.add(dbActionId);
+						actionLoader.put(dbActionId)
+								.put(playerReplayId)
+								.put(action.frame)
+								.put(action.unitCommand.getID())
+								.put(action.order.getID())
+								.put(lastSelectedGroupId)
+								.put(action.targetId)
+								.put(action.x)
+								.put(action.y)
+								.put(action.delayedAction)
+								.endRow();
+						continue;
+					}
+					if (!actionsInDb) {
+						long dbActionId = ids.next("action", "actionid");
+						allDbActionIds.add(dbActionId);
+						dbc.batch(insertAction)
+								.setLong(dbActionId)
+								.setLong(playerReplayId)
+								.setInt(action.frame)
+								.setInt(action.unitCommand.getID())
+								.setInt(action.order.getID())
+								.setLong(lastSelectedGroupId)
+								.setInt(action.targetId)
+								.setInt(action.x)
+								.setInt(action.y)
+								.setBoolean(action.delayedAction)
+								.addBatch();
+						continue;
+					}
 					data.clear();
 					data.add(playerReplayId);
 					data.add(action.frame);
@@ -461,16 +957,21 @@ public class ExtractActions {
 					data.add(action.x);
 					data.add(action.y);
 					data.add(action.delayedAction);
-					long dbActionId = dbc.executeInsert("INSERT INTO action (playerreplayid, " +
-							"frame, unitcommandtypeid, ordertypeid, unitgroupid, targetid, " +
-							"targetx, targety, `delayed`) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
-							data, true); // Note delayed is a keyword in mysql so needs quotes
+					long dbActionId = dbc.queryFirstColumn(findAction, data);
 					if (dbActionId == -1) {
-						LOGGER.warning("ActionID result was -1");
-					} else {
-						allDbActionIds.add(dbActionId);
+						dbActionId = ids.next("action", "actionid");
+						data.add(0, dbActionId);
+						dbc.executeInsert(insertAction, data, false);
 					}
+					allDbActionIds.add(dbActionId);
 				} // foreach Action
+				// The ids are known already
+				dbc.flushBatch(insertAction);
+				if (bulk) {
+					// Groups before the actions which refer to them
+					groupLoader.load();
+					actionLoader.load();
+				}
 				
 				// Remove extra actions
 				dbc.findRemoveExtras("actionid", "action", "playerreplayid=?", playerReplayId,
@@ -480,6 +981,8 @@ public class ExtractActions {
 				// (only remove units added by ExtractActions - their unittypeid will be "None")
 				dbc.findRemoveExtras("unitid", "unit", "playerreplayid=? AND unittypeid=228",
 						playerReplayId, allDbUnitIds, maxNumExtrasToRemove);
+				numUnits += allDbUnitIds.size();
+				numActions += allDbActionIds.size();
 				
 			} // foreach Player
 			
@@ -487,8 +990,51 @@ public class ExtractActions {
 			dbc.findRemoveExtras("playerreplayid", "playerreplay",
 					"replayid=? AND playername<>'Neutral'", replayId, allDbPlayerReplayIds,
 					maxNumExtrasToRemove);
-		} catch (SQLException e) {
-			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+			manifest.markDone(dbc, job.fileInfo, replay.players.size(), numUnits, numActions);
+			dbc.endTransaction();
+			manifest.doneCommitted(job.fileInfo);
+			LOGGER.fine(idCache.toString());
+		}
+		return true;
+	}
+	
+	/**
+	 * Add all the units the player selects at once (with the bulk loader, if given), then cache
+	 * their ids (including any which already existed) for the actions to use.
+	 */
+	private void addUnits(DbConnection dbc, BulkLoader unitLoader, Player player,
+			long playerReplayId) throws SQLException {
+		Set<Integer> repUnitIds = new HashSet<>();
+		List<Object> values = new ArrayList<>();
+		for (RPAction action : player.actions) {
+			if (action.rAction == ReplayActions.Select) {
+				for (int repUnitId : action.selectedUnitIds) {
+					if (!repUnitIds.add(repUnitId)) {
+						continue;
+					}
+					if (unitLoader != null) {
+						unitLoader.put(playerReplayId).put(repUnitId).endRow();
+					} else {
+						values.add(playerReplayId);
+						values.add(repUnitId);
+					}
+				}
+			}
+		}
+		if (repUnitIds.isEmpty()) {
+			return;
+		}
+		// Units which already exist (eg. from ExtractStates) are skipped
+		if (unitLoader != null) {
+			unitLoader.load();
+		} else {
+			dbc.executeMultiInsert("INSERT INTO unit (playerreplayid, unitreplayid) VALUES (?, ?)",
+					values, OnDuplicate.IGNORE);
+		}
+		ResultSet rs = dbc.executeQuery(
+				"SELECT unitid, unitreplayid FROM unit WHERE playerreplayid=?", playerReplayId);
+		while (rs.next()) {
+			dbc.getIdCache().put(rs.getLong(1), "unit", playerReplayId, rs.getInt(2));
 		}
 	}
 	
@@ -496,32 +1042,79 @@ public class ExtractActions {
 	 * Remove unit groups which aren't used by any actions. If less than {@link #maxNumExtrasToRemove}
 	 * are found, this will also delete the rows.
 	 */
-	private void cleanupExtraUnitGroups() {
+	private void cleanupExtraUnitGroups(String dbName) {
 		try (DbConnection dbc = new DbConnection();) {
+			dbc.useDatabase(dbName);
 			List<Object> data = new ArrayList<>();
 			
 			String orphanUnitGroups = "unitgroup LEFT JOIN action " +
 					"ON unitgroup.unitgroupid=action.unitgroupid " +
 					"WHERE action.actionid IS NULL";
-			ResultSet rs = dbc.executeQuery(
-					"SELECT DISTINCT unitgroup.unitgroupid FROM " + orphanUnitGroups, data);
-			List<Long> orphans = new ArrayList<>();
-			while (rs.next()) {
-				orphans.add(rs.getLong("unitgroupid"));
+			// Streamed, as there may be very many. Only some are kept to print to the log.
+			List<Long> someOrphans = new ArrayList<>();
+			long numOrphans = 0;
+			try (Stream<Long> orphans = dbc.streamQuery("SELECT DISTINCT unitgroup.unitgroupid " +
+					"FROM " + orphanUnitGroups, data, rs -> rs.getLong("unitgroupid"))) {
+				Iterator<Long> it = orphans.iterator();
+				while (it.hasNext()) {
+					long id = it.next();
+					if (numOrphans++ < MAX_ORPHANS_TO_PRINT) {
+						someOrphans.add(id);
+					}
+				}
 			}
-			if (orphans.size() > 0) {
-				if (orphans.size() > maxNumExtrasToRemove) {
-					LOGGER.warning("Removing orphaned unitgroups: " + Util.join(orphans));
+			if (numOrphans > 0) {
+				String orphanList = Util.join(someOrphans)
+						+ (numOrphans > someOrphans.size() ? ", ..." : "");
+				if (numOrphans > maxNumExtrasToRemove) {
+					LOGGER.warning("Removing " + numOrphans + " orphaned unitgroups: "
+							+ orphanList);
 					dbc.executeDelete("DELETE unitgroup FROM " + orphanUnitGroups, data);
 				} else {
-					LOGGER.warning("Found orphaned unitgroups: " + Util.join(orphans));
+					LOGGER.warning("Found " + numOrphans + " orphaned unitgroups: " + orphanList);
 				}
 			}
-		} catch (SQLException | IOException e) {
+		} catch (SQLException | UncheckedSQLException | IOException e) {
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
 		}
 	}
-
+	
+	/** A replay passing through the stages of {@link ExtractActions#start()} */
+	private static class ReplayJob {
+		/** Name of the replay file */
+		public final String name;
+		/** The replay file, or null if the replay is in a pack */
+		public final File file;
+		/** Contents of the file (or a slice of the mapped pack), until it is parsed */
+		public ByteBuffer data;
+		/** The file as it was read (or packed) */
+		public ReplayManifest.Entry fileInfo;
+		/** Whether the file's contents were already extracted, so it is just recorded */
+		public boolean alreadyExtracted = false;
+		/** Name of the other file with the same contents, if this one is a duplicate */
+		public String duplicateOf = null;
+		public Replay replay;
+		public Player winner;
+		
+		public ReplayJob(File file) {
+			name = file.getName();
+			this.file = file;
+		}
+		
+		/** A replay in a pack */
+		public ReplayJob(String name, ByteBuffer data, ReplayManifest.Entry fileInfo) {
+			this.name = name;
+			file = null;
+			this.data = data;
+			this.fileInfo = fileInfo;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
 	/** Convenience class for working with control groups. */
 	private static class ControlGroup {
 		public List<Integer> unitIds;
@@ -26,9 +26,13 @@ import jnibwapi.types.EventType;
 import jnibwapi.types.RaceType.RaceTypes;
 import jnibwapi.types.UnitType;
 import util.DbConnection;
+import util.DbConnection.OnDuplicate;
+import util.DbConnectionPool;
+import util.IdAllocator;
 import util.LogManager;
 import util.UnitAttributes;
 import util.Util;
+import extractor.StateWriter.FrameChanges;
 
 public class ExtractStates implements BWAPIEventListener {
 	// constants
@@ -73,6 +77,8 @@ public class ExtractStates implements BWAPIEventListener {
 	private final String replayFolderBad;
 	/** Where to put replay almost-good files once processed */
 	private final String replayFolderAlmost;
+	/** Where to put replay files which ExtractActions found to be duplicates of others */
+	private final String replayFolderDuplicate;
 	/**
 	 * At what percentage-completion to consider a replay "almost good" and store it, as well as
 	 * clean up the database. Many replays stop at 99% completion.
@@ -91,9 +97,13 @@ public class ExtractStates implements BWAPIEventListener {
 	// globals held between matches
 	private final JNIBWAPI bwapi;
 	private final DbConnection dbc;
+	/** Writes the state changes from each frame, using its own connection */
+	private final StateWriter stateWriter;
 	
 	// per-match variables
 	private MatchInfo mi;
+	/** Whether the replay is a duplicate of another one, so isn't extracted */
+	private boolean duplicate;
 	
 	public static void main(String[] args) {
 		// Start the logger
@@ -137,6 +147,7 @@ public class ExtractStates implements BWAPIEventListener {
 		replayFolderGood = Util.getPropertyNotNull(props, "es_replay_folder_good");
 		replayFolderBad = Util.getPropertyNotNull(props, "es_replay_folder_bad");
 		replayFolderAlmost = Util.getPropertyNotNull(props, "es_replay_folder_almost");
+		replayFolderDuplicate = Util.getPropertyNotNull(props, "es_replay_folder_duplicate");
 		replayAlmostPercent = Integer.parseInt(
 				Util.getPropertyNotNull(props, "es_replay_almost_percent"));
 		debugDrawTerrain = Boolean.parseBoolean(
@@ -144,7 +155,17 @@ public class ExtractStates implements BWAPIEventListener {
 		debugDrawRegionIds = Boolean.parseBoolean(
 				Util.getPropertyNotNull(props, "es_debug_draw_region_ids"));
 		
-		dbc = new DbConnection();
+		int writeQueueSize = Integer.parseInt(
+				Util.getPropertyNotNull(props, "es_write_queue_size"));
+		int commitFrameInterval = Integer.parseInt(
+				Util.getPropertyNotNull(props, "es_commit_frame_interval"));
+		
+		// One connection for the BWAPI thread, one for the state writer and one for reserving
+		// the state writer's IDs outside its transactions
+		DbConnectionPool pool = new DbConnectionPool(3);
+		dbc = pool.borrow();
+		stateWriter = new StateWriter(pool.borrow(), new IdAllocator(pool.borrow()),
+				writeQueueSize, commitFrameInterval);
 		bwapi = new JNIBWAPI(this, true);
 		int[] regionData = { 0, -1000, -1000 };
 		REGION_NONE = new Region(regionData, 0, new int[0]);
@@ -166,17 +187,49 @@ public class ExtractStates implements BWAPIEventListener {
 		if (!bwapi.isReplay())
 			LOGGER.severe("This is not a replay! This should only be run on replays");
 		
+		duplicate = isDuplicate(mapFileName);
+		if (duplicate) {
+			LOGGER.info("Skipping " + mapFileName + ", which is a duplicate of another replay");
+			bwapi.leaveGame();
+			return;
+		}
+		
 		try {
+			// Set up the replay's map, players etc. all in one go. Units and events are then
+			// committed as they happen, so the state writer's connection can refer to them.
+			dbc.beginTransaction();
 			initDbRecording();
+			dbc.endTransaction();
 		} catch (Exception e) {
 			LOGGER.log(Level.SEVERE, "Error Starting Game", e);
+			try {
+				dbc.rollback();
+			} catch (SQLException e1) {
+				LOGGER.log(Level.SEVERE, "Error rolling back", e1);
+			}
 			bwapi.leaveGame();
 		}
 		LOGGER.info("Map initialisation completed. Starting state extraction...");
 	}
 	
+	/** @return whether ExtractActions recorded the replay file as a duplicate of another one */
+	private boolean isDuplicate(String replayFileName) {
+		try {
+			return dbc.stmt("SELECT 1 FROM replayfile WHERE ReplayFileName=? AND " +
+					"Status='duplicate'")
+					.setString(replayFileName)
+					.queryFirstColumn() != -1;
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Error checking for duplicate replay", e);
+			return false;
+		}
+	}
+	
 	@Override
 	public void matchFrame() {
+		if (duplicate) {
+			return;
+		}
 		// Debug draw terrain
 		if (debugDrawTerrain) {
 			bwapi.getMap().drawTerrainData(bwapi);
@@ -204,10 +257,14 @@ public class ExtractStates implements BWAPIEventListener {
 				extractionMode == ExtractionMode.ACTION_FRAMES && isActionFrame(frame) ||
 				extractionMode == ExtractionMode.ATTACK_FRAMES && isAttackFrame(frame)) {
 			try {
-				recordUnitAttributeChanges(frame);
-				recordVisibilityChanges(frame);
-				recordRegionValueChanges(frame);
-				recordResourceChanges(frame);
+				// Work out the changes here, while BWAPI's state is current, but leave the DB
+				// writes to the state writer
+				FrameChanges changes = new FrameChanges(mi, frame);
+				recordUnitAttributeChanges(frame, changes);
+				recordVisibilityChanges(frame, changes);
+				recordRegionValueChanges(frame, changes);
+				recordResourceChanges(frame, changes);
+				stateWriter.add(changes);
 			} catch (Exception e) {
 				LOGGER.log(Level.SEVERE, "Error Updating State: " + e.getMessage(), e);
 			}
@@ -224,6 +281,23 @@ public class ExtractStates implements BWAPIEventListener {
 	public void matchEnd(boolean winner) {
 		// winner is always false in replays
 		LOGGER.info("Finished " + bwapi.getMap().getFileName());
+		if (duplicate) {
+			moveReplay(bwapi.getMap().getFileName(), "duplicate", replayFolderDuplicate);
+			return;
+		}
+		LOGGER.fine(dbc.getIdCache().toString());
+		try {
+			// Make sure all the state changes are in the DB before checking for extras
+			stateWriter.flush(bwapi.getMap().getFileName());
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.SEVERE, "Interrupted waiting for state changes to be written", e);
+			Thread.currentThread().interrupt();
+			return;
+		} catch (SQLException e) {
+			// Cleaning up would remove the rows of any changes which weren't written
+			LOGGER.log(Level.SEVERE, "State changes could not be written: " + e.getMessage(), e);
+			return;
+		}
 		int frame = bwapi.getFrameCount();
 		int total = bwapi.getReplayFrameTotal();
 		String result = null;
@@ -248,6 +322,12 @@ public class ExtractStates implements BWAPIEventListener {
 			}
 		}
 		String mapFileName = bwapi.getMap().getFileName();
+		dbc.getProfiler().dump(mapFileName);
+		moveReplay(mapFileName, result, folderName);
+	}
+	
+	/** Move the replay to the folder for replays with this result */
+	private void moveReplay(String mapFileName, String result, String folderName) {
 		LOGGER.info("Adding " + mapFileName + " to " + result + " replays");
 		// Move the replay to the finished folder (note this will cause BWAPI's auto_menu
 		// to hang if it completes a full loop of replays and tries to go back to the first)
@@ -291,16 +371,14 @@ public class ExtractStates implements BWAPIEventListener {
 	
 	@Override
 	public void nukeDetect(Position p) {
+		if (duplicate) {
+			return;
+		}
 		// pixel coordinates
 		LOGGER.fine("Nuke Detect event at: (" + p.getPX() + "," + p.getPY() + ")");
-		List<Object> data = new ArrayList<>();
-		data.add(mi.dbMapId);
-		data.add(p.getBX());
-		data.add(p.getBY());
 		long buildTileId = -1;
 		try {
-			buildTileId = dbc.queryFirstColumn("SELECT * FROM buildtile " +
-					"WHERE MapID=? AND BTilePosX=? AND BTilePosY=?", data);
+			buildTileId = getBuildTileId(p);
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Error in nukeDetect", e);
 			return;
@@ -382,39 +460,44 @@ public class ExtractStates implements BWAPIEventListener {
 		// identify maps as many different versions of maps are called by the same name.
 		data.add(bwapi.getMap().getHash());
 		ResultSet rs = dbc.executeQuery("SELECT * FROM map WHERE hash=?", data);
-		String prevMapName = null;
 		if (rs.next()) {
-			mi.dbMapId = rs.getInt("mapid");
-			prevMapName = rs.getString("mapName");
-		}
-		
-		data.clear();
-		data.add(bwapi.getMap().getName());
-		data.add(bwapi.getMap().getStartLocations().size());
-		data.add(bwapi.getMap().getHash());
-		if (mi.dbMapId == -1) {
-			mi.dbMapId = (int) dbc.executeInsert(
-					"INSERT INTO map (mapName, numStartPos, hash) VALUES (?, ?, ?)", data, true);
-		} else {
+			String prevMapName = rs.getString("mapName");
 			if (prevMapName != null && !prevMapName.equals(bwapi.getMap().getName())) {
 				// Map names shouldn't be changing unless there is a hash collision
 				LOGGER.warning("Map name changed from: " + prevMapName + " to: "
 						+ bwapi.getMap().getName());
 			}
-			dbc.executeUpdate("UPDATE map SET mapName=?, numStartPos=? WHERE hash=?", data, true);
 		}
 		
+		data.clear();
+		data.add(bwapi.getMap().getName());
+		data.add(bwapi.getMap().getStartLocations().size());
+		data.add(bwapi.getMap().getHash());
+		mi.dbMapId = (int) dbc.executeUpsert(
+				"INSERT INTO map (mapName, numStartPos, hash) VALUES (?, ?, ?)", data, "MapID");
+		
 		// insert regions. Treat "no region" (0) as another region
 		List<Region> regionsPlusOne = new ArrayList<>(bwapi.getMap().getRegions());
 		regionsPlusOne.add(REGION_NONE);
+		data.clear();
 		for (Region region : regionsPlusOne) {
-			data.clear();
 			data.add(mi.dbMapId);
 			data.add(region.getID());
-			long dbRegionId = dbc.executeInsert(
-					"INSERT INTO region (MapID, ScRegionID) VALUES (?, ?)", data, true);
-			if (dbRegionId == -1) {
-				LOGGER.severe("Region ID was -1 from DB " + Util.join(data));
+		}
+		// Insert them all at once, then get all the map's region IDs
+		dbc.executeMultiInsert("INSERT INTO region (MapID, ScRegionID) VALUES (?, ?)", data,
+				OnDuplicate.IGNORE);
+		Map<Integer, Long> scRegionIdToDbId = new HashMap<>();
+		rs = dbc.executeQuery("SELECT ScRegionID, RegionID FROM region WHERE MapID=?",
+				mi.dbMapId);
+		while (rs.next()) {
+			scRegionIdToDbId.put(rs.getInt(1), rs.getLong(2));
+		}
+		for (Region region : regionsPlusOne) {
+			Long dbRegionId = scRegionIdToDbId.get(region.getID());
+			if (dbRegionId == null) {
+				LOGGER.severe("Region ID was -1 from DB " + mi.dbMapId + ", " + region.getID());
+				dbRegionId = -1L;
 			}
 			mi.regionToDbRegionId.put(region, dbRegionId);
 		}
@@ -423,6 +506,7 @@ public class ExtractStates implements BWAPIEventListener {
 		
 		// insert build tile data
 		DistanceMap dMap = new DistanceMap(bwapi.getMap());
+		data.clear();
 		for (int x = 0; x < bwapi.getMap().getSize().getBX(); x++) {
 			for (int y = 0; y < bwapi.getMap().getSize().getBY(); y++) {
 				// There are 4x4 walk tiles per build tile. Gather walkable info into a bit array
@@ -436,7 +520,6 @@ public class ExtractStates implements BWAPIEventListener {
 					}
 				}
 				Position p = new Position(x, y, PosType.BUILD);
-				data.clear();
 				data.add(mi.dbMapId);
 				data.add(x);
 				data.add(y);
@@ -452,32 +535,32 @@ public class ExtractStates implements BWAPIEventListener {
 					LOGGER.severe("DbRegionID was null for " + r);
 				}
 				data.add(mi.regionToDbRegionId.get(bwapi.getMap().getRegion(p)));
-				long buildTileId = -1;
-				try {
-					// Try to update existing column first
-					buildTileId = dbc.queryFirstColumn("SELECT * FROM buildtile " +
-							"WHERE MapID=? AND BTilePosX=? AND BTilePosY=?", data.subList(0, 3));
-					if (buildTileId != -1) {
-						data.add(buildTileId);
-						dbc.executeUpdate("UPDATE buildtile SET GroundHeightID=?, Buildable=?, " +
-								"Walkable=b?, ChokeDist=?, BaseLocationDist=?, " +
-								"StartLocationDist=?, RegionID=? WHERE BuildTileID=?",
-								data.subList(3, data.size()), true);
-					} else {
-						buildTileId = dbc.executeInsert("INSERT INTO buildtile " +
-								"(MapID, BTilePosX, BTilePosY, GroundHeightID, Buildable, " +
-								"Walkable, ChokeDist, BaseLocationDist, StartLocationDist, " +
-								"RegionID) VALUES (?, ?, ?, ?, ?, b?, ?, ?, ?, ?)", data, true);
-						if (buildTileId == -1) {
-							throw new SQLException("Failed to update/insert buildTile.");
-						}
-					}
-				} catch (SQLException e) {
-					LOGGER.log(Level.SEVERE, "Exception in buildTile entry " + Util.join(data), e);
-					return;
-				}
 			}
 		}
+		try {
+			// Insert the tiles, or update the existing tiles' values, many at a time
+			dbc.executeMultiInsert("INSERT INTO buildtile " +
+					"(MapID, BTilePosX, BTilePosY, GroundHeightID, Buildable, " +
+					"Walkable, ChokeDist, BaseLocationDist, StartLocationDist, " +
+					"RegionID) VALUES (?, ?, ?, ?, ?, b?, ?, ?, ?, ?)", data, OnDuplicate.UPDATE);
+			// Then cache all their IDs
+			int numTiles = 0;
+			rs = dbc.executeQuery("SELECT BuildTileID, BTilePosX, BTilePosY FROM buildtile " +
+					"WHERE MapID=?", mi.dbMapId);
+			while (rs.next()) {
+				dbc.getIdCache().put(rs.getLong(1), "buildtile", mi.dbMapId, rs.getInt(2),
+						rs.getInt(3));
+				numTiles++;
+			}
+			int expectedTiles = bwapi.getMap().getSize().getBX() * bwapi.getMap().getSize().getBY();
+			if (numTiles < expectedTiles) {
+				throw new SQLException("Failed to update/insert buildTiles: found " + numTiles
+						+ " of " + expectedTiles);
+			}
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Exception in buildTile entries", e);
+			return;
+		}
 		
 		// Find start position build tile IDs in DB
 		Map<Player, Long> playerToStartPosBtId = new HashMap<>();
@@ -486,12 +569,7 @@ public class ExtractStates implements BWAPIEventListener {
 				continue;
 			}
 			Position startLoc = p.getStartLocation();
-			data.clear();
-			data.add(mi.dbMapId);
-			data.add(startLoc.getBX());
-			data.add(startLoc.getBY());
-			long buildTileId = dbc.queryFirstColumn("SELECT BuildTileID FROM `buildtile` WHERE " +
-					"MapID = ? AND BTilePosX = ? AND BTilePosY = ?", data);
+			long buildTileId = getBuildTileId(startLoc);
 			if (buildTileId == -1) {
 				LOGGER.severe("BuildTileID was -1 at startlocation");
 				continue;
@@ -499,24 +577,13 @@ public class ExtractStates implements BWAPIEventListener {
 			playerToStartPosBtId.put(p, buildTileId);
 		}
 		
-		// Check if replay entry exists, and create/update as needed
-		data.clear();
-		data.add(bwapi.getMap().getFileName());
-		mi.dbReplayId = (int) dbc.queryFirstColumn("SELECT * FROM replay WHERE ReplayName=?", data);
+		// Create replay entry, or update existing entry (mapid could be null from ExtractActions)
 		data.clear();
 		data.add(mi.dbMapId);
 		data.add(bwapi.getReplayFrameTotal());
 		data.add(bwapi.getMap().getFileName());
-		if (mi.dbReplayId == -1) {
-			// create new entry for this replay
-			mi.dbReplayId = (int) dbc.executeInsert("INSERT INTO replay " +
-					"(`MapID`,`Duration`,`ReplayName`) VALUES (?, ?, ?)", data, false);
-			
-		} else {
-			// Update existing entry (mapid could be null from ExtractActions)
-			dbc.executeUpdate(
-					"UPDATE replay SET MapID=?, Duration=? WHERE ReplayName=?", data, true);
-		}
+		mi.dbReplayId = (int) dbc.executeUpsert("INSERT INTO replay " +
+				"(`MapID`,`Duration`,`ReplayName`) VALUES (?, ?, ?)", data, "ReplayID");
 		
 		// create a new DB entry for each player in this game and store a mapping between ids within
 		// the game and within the DB
@@ -538,13 +605,17 @@ public class ExtractStates implements BWAPIEventListener {
 					// Non-neutral players were added already by ExtractActions so we just want to
 					// update the startPosition
 					data.clear();
-					data.add(playerToStartPosBtId.get(p));
 					data.add(p.getName());
 					data.add(p.getRace().getID());
 					data.add(mi.dbReplayId);
-					playerReplayId = dbc.executeUpdate("UPDATE playerreplay " +
-							"SET StartPosBtId=? " +
-							"WHERE PlayerName=? AND RaceID=? AND ReplayID=?", data, true);
+					playerReplayId = dbc.queryFirstColumn("SELECT PlayerReplayID FROM " +
+							"playerreplay WHERE PlayerName=? AND RaceID=? AND ReplayID=?", data);
+					if (playerReplayId != -1) {
+						dbc.stmt("UPDATE playerreplay SET StartPosBtId=? WHERE PlayerReplayID=?")
+								.setLongOrNull(playerToStartPosBtId.get(p))
+								.setLong(playerReplayId)
+								.executeUpdate();
+					}
 				}
 				
 				if (playerReplayId == -1) {
@@ -560,12 +631,44 @@ public class ExtractStates implements BWAPIEventListener {
 			}
 		}
 		LOGGER.info("#Players found (incl Neutral): " + mi.playerIdToPlayerReplayId.size());
+		
+		// Check whether this replay has been extracted before
+		data.clear();
+		data.add(mi.dbReplayId);
+		mi.attributeChangesInDb = dbc.queryFirstColumn("SELECT AttributeChangeID FROM " +
+				"attributechange NATURAL JOIN unit NATURAL JOIN playerreplay WHERE ReplayID=? " +
+				"LIMIT 1", data) != -1;
+		if (mi.attributeChangesInDb) {
+			LOGGER.info("Replay has been extracted before. Checking existing attribute changes.");
+		}
+		if (dbc.isBulkLoadEnabled()) {
+			mi.bulkLoadAttributeChanges = !mi.attributeChangesInDb;
+			mi.bulkLoadVisibilityChanges = dbc.queryFirstColumn("SELECT VisibilityChangeID FROM " +
+					"visibilitychange JOIN playerreplay ON ViewerID=PlayerReplayID " +
+					"WHERE ReplayID=? LIMIT 1", data) == -1;
+		}
 		if (mi.playerIdToPlayerReplayId.size() < 3) {
 			LOGGER.severe("Less than 3 players (incl. neutral). Leaving.");
 			bwapi.leaveGame();
 		}
 	}
 	
+	/** Get the DB id of the build tile at the given position, or -1 if not found */
+	private long getBuildTileId(Position p) throws SQLException {
+		// All of the map's build tiles are cached as they are inserted, unless evicted since
+		long buildTileId = dbc.getIdCache().get("buildtile", mi.dbMapId, p.getBX(), p.getBY());
+		if (buildTileId == -1) {
+			buildTileId = dbc.stmt("SELECT BuildTileID FROM buildtile " +
+					"WHERE MapID=? AND BTilePosX=? AND BTilePosY=?")
+					.setLong(mi.dbMapId)
+					.setInt(p.getBX())
+					.setInt(p.getBY())
+					.queryFirstColumn();
+			dbc.getIdCache().put(buildTileId, "buildtile", mi.dbMapId, p.getBX(), p.getBY());
+		}
+		return buildTileId;
+	}
+	
 	/** Create unit entry in DB */
 	private void recordUnit(Unit unit) throws SQLException {
 		long dbUnitId;
@@ -595,20 +698,15 @@ public class ExtractStates implements BWAPIEventListener {
 			return;
 		}
 		
-		// Update unit type in DB (should be entered already by ExtractActions)
-		dbUnitId = dbc.executeUpdate("UPDATE unit SET UnitTypeID=? " +
-				"WHERE PlayerReplayID=? AND UnitReplayID=?", data, true);
-		if (dbUnitId == -1) {
-			// Neutral units will need to be created because they aren't extracted by ExtractActions
-			// Other units may need to be created if they were never given orders in the replay
-			LOGGER.info(String.format(
-					"Unit added to DB: type: %d (%s), playerReplay: %d, unitReplay: %d",
-					unit.getType().getID(), unit.getType(),
-					mi.playerIdToPlayerReplayId.get(unit.getPlayer().getID()), unit.getReplayID()));
-			dbUnitId = dbc.executeInsert(
-					"INSERT INTO unit (UnitTypeID, PlayerReplayID, UnitReplayID) " +
-							"VALUES (?, ?, ?)", data, true);
-		}
+		// Update unit type in DB (should be entered already by ExtractActions). Neutral units will
+		// need to be created because they aren't extracted by ExtractActions. Other units may need
+		// to be created if they were never given orders in the replay.
+		dbUnitId = dbc.upsert("INSERT INTO unit (UnitTypeID, PlayerReplayID, UnitReplayID) " +
+				"VALUES (?, ?, ?)", "UnitID")
+				.setInt(unit.getType().getID())
+				.setLong(mi.playerIdToPlayerReplayId.get(unit.getPlayer().getID()))
+				.setInt(unit.getReplayID())
+				.executeUpsert();
 		if (dbUnitId == -1) {
 			LOGGER.severe("Problem getting unit ID from db." + Util.join(data));
 			bwapi.leaveGame();
@@ -631,14 +729,8 @@ public class ExtractStates implements BWAPIEventListener {
 		mi.uIdToPIdToVisibility.put(unit.getID(), unitVis);
 	}
 	
-	/** Update the DB with any changes to unit attributes since last time step */
-	private void recordUnitAttributeChanges(int frame) throws SQLException {
-		List<Object> data = new ArrayList<>();
-		String select = "SELECT * FROM attributechange WHERE " +
-				"UnitID=? AND ChangeTime=? AND AttributeTypeID=?";
-		String insert = "INSERT INTO attributechange (`UnitID`,`ChangeTime`,`AttributeTypeID`," +
-				"`ChangeVal`) VALUES (?, ?, ?, ?)";
-		String update = "UPDATE attributechange SET ChangeVal=? WHERE AttributeChangeID=?";
+	/** Find any changes to unit attributes since last time step */
+	private void recordUnitAttributeChanges(int frame, FrameChanges changes) throws SQLException {
 		for (int unitId : mi.unitIdToAttributes.keySet()) {
 			// for each unit, compare its current attribute values to the ones from the previous
 			// time step
@@ -658,40 +750,12 @@ public class ExtractStates implements BWAPIEventListener {
 				
 			UnitAttributes previous = mi.unitIdToAttributes.get(unitId);
 			UnitAttributes current = new UnitAttributes(currentUnit, mi.allUnits);
+			long dbUnitId = mi.unitIdToDbId.get(unitId);
 			
 			for (int i = 0; i < UnitAttributes.NUM_ATTRIBUTES; i++) {
 				if (current.attributes[i] != previous.attributes[i]) {
-					data.clear();
-					data.add(mi.unitIdToDbId.get(unitId));
-					data.add(frame);
-					data.add(i);
-					
-					// Save new value or update an existing incorrect value
-					ResultSet rs = dbc.executeQuery(select, data);
-					// Check if this change is already in the DB
-					if (rs.next()) {
-						long id = rs.getLong("AttributeChangeId");
-						int attributeValue = rs.getInt("ChangeVal");
-						mi.allAttributeChangeIds.add(id);
-						// Value doesn't match the database!
-						// Change the database's stored value
-						if (attributeValue != current.attributes[i]) {
-							LOGGER.fine("Attribute " + i + " changed from " + attributeValue
-									+ " to " + current.attributes[i]);
-							data.clear();
-							data.add(current.attributes[i]);
-							data.add(id);
-							dbc.executeUpdate(update, data, true);
-						}
-						if (rs.next()) {
-							LOGGER.severe("Should only be one row selected by SELECT query");
-						}
-					} else {
-						// Not in the DB, so add it
-						data.add(current.attributes[i]);
-						long id = dbc.executeInsert(insert, data, false);
-						mi.allAttributeChangeIds.add(id);
-					}
+					changes.attributeChanges.put(dbUnitId).put(frame).put(i)
+							.put(current.attributes[i]);
 					// update the stored value
 					previous.attributes[i] = current.attributes[i];
 				}
@@ -699,10 +763,7 @@ public class ExtractStates implements BWAPIEventListener {
 		}
 	}
 	
-	private void recordVisibilityChanges(int frame) throws SQLException {
-		List<Object> data = new ArrayList<>();
-		String query = "INSERT INTO visibilitychange " +
-				"(`ViewerID`,`UnitID`,`ChangeTime`,`ChangeVal`) VALUES (?, ?, ?, ?)";
+	private void recordVisibilityChanges(int frame, FrameChanges changes) {
 		for (int unitId : mi.uIdToPIdToVisibility.keySet()) {
 			Map<Integer, Boolean> pIdToVisibility = mi.uIdToPIdToVisibility.get(unitId);
 			Integer toRemovePlayerId = null;
@@ -716,14 +777,8 @@ public class ExtractStates implements BWAPIEventListener {
 				if (visible != bwapi.isVisibleToPlayer(
 						mi.allUnits.get(unitId), bwapi.getPlayer(playerId))) {
 					// record change in DB
-					data.clear();
-					data.add(mi.playerIdToPlayerReplayId.get(playerId));
-					data.add(mi.unitIdToDbId.get(unitId));
-					data.add(frame);
-					data.add(!visible);
-					
-					long id = dbc.executeInsert(query, data, true);
-					mi.allVisibilityChangeIds.add(id);
+					changes.visibilityChanges.put(mi.playerIdToPlayerReplayId.get(playerId))
+							.put(mi.unitIdToDbId.get(unitId)).put(frame).put(visible ? 0 : 1);
 					// Update stored value
 					pIdToVisibility.put(playerId, !visible);
 				}
@@ -733,15 +788,8 @@ public class ExtractStates implements BWAPIEventListener {
 		}
 	}
 	
-	/** Update the database with any changes in aggregate region values known to each player */
-	private void recordRegionValueChanges(int frame) throws SQLException {
-		List<Object> data = new ArrayList<>();
-		String insert = "INSERT INTO regionvaluechange (PlayerReplayID, RegionID, Frame) " +
-				"VALUES (?, ?, ?)";
-		String update = "UPDATE regionvaluechange SET GroundUnitValue=?, BuildingValue=?, " +
-				"AirUnitValue=?, EnemyGroundUnitValue=?, EnemyBuildingValue=?, " +
-				"EnemyAirUnitValue=?, ResourceValue=? WHERE ChangeID=?";
-		
+	/** Find any changes in aggregate region values known to each player */
+	private void recordRegionValueChanges(int frame, FrameChanges changes) {
 		for (int pid : mi.playerIdToPlayerReplayId.keySet()) {
 			Player p = bwapi.getPlayer(pid);
 			// Exclude neutral players
@@ -786,31 +834,23 @@ public class ExtractStates implements BWAPIEventListener {
 			for (Region r : newRegionValues.keySet()) {
 				RegionValues rv = newRegionValues.get(r);
 				if (!rv.equals(regionValues.get(r))) {
-					data.clear();
-					data.add(mi.playerIdToPlayerReplayId.get(p.getID()));
-					data.add(mi.regionToDbRegionId.get(r));
 					if (mi.regionToDbRegionId.get(r) == null) {
-						LOGGER.severe("region db ID was null!");
-					}
-					data.add(frame);
-					long changeId = dbc.executeInsert(insert, data, true);
-					if (changeId == -1) {
-						LOGGER.severe("Got -1 changeID for regionValueChange " + Util.join(data));
+						// Stored anyway, so this is only logged the first time for each region
+						if (regionValues.put(r, rv) == null) {
+							LOGGER.severe("region db ID was null!");
+						}
 						continue;
 					}
-					
-					// Store the change in the db
-					data.clear();
-					data.add(rv.groundUnitValue);
-					data.add(rv.buildingValue);
-					data.add(rv.airUnitValue);
-					data.add(rv.enemyGroundUnitValue);
-					data.add(rv.enemyBuildingValue);
-					data.add(rv.enemyAirUnitValue);
-					data.add(rv.resourceValue);
-					data.add(changeId);
-					long id = dbc.executeUpdate(update, data, true);
-					mi.allRegionValueChangeIds.add(id);
+					changes.regionValueChanges.put(mi.playerIdToPlayerReplayId.get(p.getID()))
+							.put(mi.regionToDbRegionId.get(r))
+							.put(frame)
+							.put(rv.groundUnitValue)
+							.put(rv.buildingValue)
+							.put(rv.airUnitValue)
+							.put(rv.enemyGroundUnitValue)
+							.put(rv.enemyBuildingValue)
+							.put(rv.enemyAirUnitValue)
+							.put(rv.resourceValue);
 					
 					// Update the stored values
 					regionValues.put(r, rv);
@@ -862,14 +902,9 @@ public class ExtractStates implements BWAPIEventListener {
 	
 	/**
 	 * Record the resources (incl. supply) of each player. Actually recording each time instead of
-	 * just the changes as resources likely change almost constantly. @throws SQLException
+	 * just the changes as resources likely change almost constantly.
 	 */
-	private void recordResourceChanges(int frame) throws SQLException {
-		List<Object> data = new ArrayList<>();
-		String insert = "INSERT INTO resourcechange (PlayerReplayID, Frame) VALUES (?, ?)";
-		String update = "UPDATE resourcechange SET Minerals=?, Gas=?, Supply=?, TotalMinerals=?, " +
-				"TotalGas=?, TotalSupply=? WHERE ChangeID=?";
-		
+	private void recordResourceChanges(int frame, FrameChanges changes) {
 		for (int pid : mi.playerIdToPlayerReplayId.keySet()) {
 			Player p = bwapi.getPlayer(pid);
 			if (p.isNeutral()) {
@@ -883,26 +918,14 @@ public class ExtractStates implements BWAPIEventListener {
 				mi.playerToResources.put(pid, resources);
 			}
 			
-			// Ensure there is an entry for this player + frame
-			data.clear();
-			data.add(mi.playerIdToPlayerReplayId.get(p.getID()));
-			data.add(frame);
-			long changeId = dbc.executeInsert(insert, data, true);
-			if (changeId == -1) {
-				LOGGER.severe("-1 changeID for resourcechange: " + Util.join(data));
-				continue;
-			}
-			// Update the entry with the correct values
-			data.clear();
-			data.add(p.getMinerals());
-			data.add(p.getGas());
-			data.add(p.getSupplyUsed());
-			data.add(p.getCumulativeMinerals());
-			data.add(p.getCumulativeGas());
-			data.add(p.getSupplyTotal());
-			data.add(changeId);
-			long id = dbc.executeUpdate(update, data, true);
-			mi.allResourceChangeIds.add(id);
+			changes.resourceChanges.put(mi.playerIdToPlayerReplayId.get(p.getID()))
+					.put(frame)
+					.put(p.getMinerals())
+					.put(p.getGas())
+					.put(p.getSupplyUsed())
+					.put(p.getCumulativeMinerals())
+					.put(p.getCumulativeGas())
+					.put(p.getSupplyTotal());
 		}
 	}
 	
@@ -924,20 +947,26 @@ public class ExtractStates implements BWAPIEventListener {
 			return;
 		}
 		try {
-			List<Object> data = new ArrayList<>();
-			data.add(mi.dbReplayId);
-			data.add(bwapi.getFrameCount());
-			data.add(eventType.getID());
-			data.add(dbUnitId);
-			data.add(dbBuildTileId);
 			// Because unitId or buildTileId can be null, need to check for this manually
-			long id = dbc.queryFirstColumn("SELECT * FROM event WHERE ReplayID=? AND Frame=? " +
+			long id = dbc.stmt("SELECT * FROM event WHERE ReplayID=? AND Frame=? " +
 					"AND EventTypeID=? AND (UnitID=? AND BuildTileID IS NULL) OR " +
-					"(UnitID IS NULL AND BuildTileID=?)", data);
+					"(UnitID IS NULL AND BuildTileID=?)")
+					.setLong(mi.dbReplayId)
+					.setInt(bwapi.getFrameCount())
+					.setInt(eventType.getID())
+					.setLongOrNull(dbUnitId)
+					.setLongOrNull(dbBuildTileId)
+					.queryFirstColumn();
 			if (id == -1) {
-				id = dbc.executeInsert("INSERT INTO event " +
+				id = dbc.stmt("INSERT INTO event " +
 						"(ReplayID, Frame, EventTypeID, UnitID, BuildTileID) " +
-						"VALUES (?, ?, ?, ?, ?)", data, false);
+						"VALUES (?, ?, ?, ?, ?)")
+						.setLong(mi.dbReplayId)
+						.setInt(bwapi.getFrameCount())
+						.setInt(eventType.getID())
+						.setLongOrNull(dbUnitId)
+						.setLongOrNull(dbBuildTileId)
+						.executeInsert();
 			}
 			mi.allEventIds.add(id);
 		} catch (SQLException e) {
@@ -945,7 +974,11 @@ public class ExtractStates implements BWAPIEventListener {
 		}
 	}
 	
-	/** Clean up any duplicates/orphans that shouldn't be in the DB for this replay */
+	/**
+	 * Clean up any duplicates/orphans that shouldn't be in the DB for this replay. Each table is
+	 * cleaned up for the whole replay in one go, but maxNumExtrasToRemove still applies to the
+	 * extras of each unit or player on its own.
+	 */
 	private void cleanupDatabase() {
 		try {
 			// Clean up playerReplay
@@ -956,32 +989,37 @@ public class ExtractStates implements BWAPIEventListener {
 			dbc.findRemoveExtras("eventId", "event", "replayId=?", mi.dbReplayId, mi.allEventIds,
 					maxNumExtrasToRemove);
 			
-			for (long unitId : mi.unitIdToDbId.values()) {
-				// Clean up attributeChange
-				dbc.findRemoveExtras("attributeChangeId", "attributeChange", "unitId=?", unitId,
-						mi.allAttributeChangeIds, maxNumExtrasToRemove);
-			}
+			// Everything else is cleaned up for the whole replay at once, with the limit on
+			// extras applied per unit or player
+			String inReplay = " IN (SELECT playerReplayId FROM playerReplay WHERE replayId=?)";
 			
-			for (long playerReplayId : mi.playerIdToPlayerReplayId.values()) {
-				// Clean up unit
-				// ignore "None" type units - they were added by ExtractActions and are indicative
-				// of broken replay files
-				dbc.findRemoveExtras("unitId", "unit", "playerReplayId=? AND unitTypeId!=228",
-						playerReplayId, new HashSet<>(mi.unitIdToDbId.values()),
-						maxNumExtrasToRemove);
-				
-				// Clean up visibilityChange
-				dbc.findRemoveExtras("visibilityChangeId", "visibilityChange", "viewerId=?",
-						playerReplayId, mi.allVisibilityChangeIds, maxNumExtrasToRemove);
-				
-				// Clean up regionValueChange
-				dbc.findRemoveExtras("changeId", "regionValueChange", "playerReplayId=?",
-						playerReplayId, mi.allRegionValueChangeIds, maxNumExtrasToRemove);
-				
-				// Clean up resourceChange
-				dbc.findRemoveExtras("changeId", "resourceChange", "playerReplayId=?",
-						playerReplayId, mi.allResourceChangeIds, maxNumExtrasToRemove);
+			// Clean up attributeChange
+			dbc.findRemoveExtras("attributeChangeId", "attributeChange", "unitId IN " +
+					"(SELECT unitId FROM unit WHERE playerReplayId" + inReplay + ")",
+					mi.dbReplayId, mi.allAttributeChangeIds, "unitId", maxNumExtrasToRemove);
+			
+			// Clean up unit
+			// ignore "None" type units - they were added by ExtractActions and are indicative
+			// of broken replay files
+			dbc.findRemoveExtras("unitId", "unit", "playerReplayId" + inReplay +
+					" AND unitTypeId!=228", mi.dbReplayId, new HashSet<>(mi.unitIdToDbId.values()),
+					"playerReplayId", maxNumExtrasToRemove);
+			
+			// Clean up visibilityChange
+			if (!mi.bulkLoadVisibilityChanges) {
+				dbc.findRemoveExtras("visibilityChangeId", "visibilityChange",
+						"viewerId" + inReplay, mi.dbReplayId, mi.allVisibilityChangeIds,
+						"viewerId", maxNumExtrasToRemove);
 			}
+			
+			// Clean up regionValueChange
+			dbc.findRemoveExtras("changeId", "regionValueChange", "playerReplayId" + inReplay,
+					mi.dbReplayId, mi.allRegionValueChangeIds, "playerReplayId",
+					maxNumExtrasToRemove);
+			
+			// Clean up resourceChange
+			dbc.findRemoveExtras("changeId", "resourceChange", "playerReplayId" + inReplay,
+					mi.dbReplayId, mi.allResourceChangeIds, "playerReplayId", maxNumExtrasToRemove);
 		} catch (SQLException e) {
 			LOGGER.log(Level.WARNING, "Error while cleaning up DB", e);
 		}
@@ -1000,17 +1038,18 @@ public class ExtractStates implements BWAPIEventListener {
 			return false;
 		}
 		String playersPart = "";
-		List<Object> data = new ArrayList<>();
-		for (long playerreplayid : mi.playerIdToPlayerReplayId.values()) {
+		for (int i = 0; i < mi.playerIdToPlayerReplayId.size(); i++) {
 			playersPart += "playerreplayid=? OR ";
-			data.add(playerreplayid);
 		}
 		playersPart = playersPart.substring(0, playersPart.length() - 4);
-		data.add(bwapi.getFrameCount());
 		long count = 0;
 		try {
-			count = dbc.queryFirstColumn("SELECT COUNT(*) FROM action WHERE " +
-					"(" + playersPart + ") AND frame=?", data);
+			DbConnection.Binder query = dbc.stmt("SELECT COUNT(*) FROM action WHERE " +
+					"(" + playersPart + ") AND frame=?");
+			for (long playerreplayid : mi.playerIdToPlayerReplayId.values()) {
+				query.setLong(playerreplayid);
+			}
+			count = query.setInt(bwapi.getFrameCount()).queryFirstColumn();
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Failed to get action count", e);
 		}
@@ -1045,11 +1084,11 @@ public class ExtractStates implements BWAPIEventListener {
 			lastFrame = nextFrame;
 			mi.unitIdToLastActionFrameCached.put(unit.getID(), lastFrame);
 			// Look up new nextFrame
-			List<Object> data = new ArrayList<>();
-			data.add(mi.playerIdToPlayerReplayId.get(unit.getPlayer().getID()));
-			data.add(unit.getReplayID());
-			data.add(currentFrame);
-			nextFrame = (int) dbc.queryFirstColumn(query, data);
+			nextFrame = (int) dbc.stmt(query)
+					.setLong(mi.playerIdToPlayerReplayId.get(unit.getPlayer().getID()))
+					.setInt(unit.getReplayID())
+					.setInt(currentFrame)
+					.queryFirstColumn();
 			if (nextFrame == -1) {
 				// No next action frame found
 				nextFrame = Integer.MAX_VALUE;
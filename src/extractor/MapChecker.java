@@ -13,6 +13,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +27,7 @@ import jnibwapi.Position;
 import jnibwapi.Position.PosType;
 import jnibwapi.Region;
 import util.DbConnection;
+import util.DbConnectionPool;
 import util.LogManager;
 import util.Util;
 
@@ -41,7 +45,7 @@ public class MapChecker {
 	private static final int MAX_BAD_REGIONS_TO_REPORT = 10;
 	
 	private final JNIBWAPI fakeJnibwapi;
-	private final DbConnection dbc;
+	private final DbConnectionPool pool;
 	private final String mapDataFolderName = "mapData";
 	private final File[] mapDataFiles;
 	
@@ -79,16 +83,36 @@ public class MapChecker {
 		
 		fakeJnibwapi = new JNIBWAPI(null, false);
 		LOGGER.info("Make sure debug mode is NOT active below");
-		dbc = new DbConnection();
+		pool = new DbConnectionPool();
 	}
 	
 	public void start() throws SQLException, IOException {
-		// for each db
-		for (String dbName : DB_NAMES) {
+		// Check each db in parallel, each with its own connection
+		ExecutorService executor =
+				Executors.newFixedThreadPool(Math.min(pool.getSize(), DB_NAMES.length));
+		List<Future<Void>> results = new ArrayList<>();
+		for (final String dbName : DB_NAMES) {
+			results.add(executor.submit(() -> {
+				checkDb(dbName);
+				return null;
+			}));
+		}
+		executor.shutdown();
+		for (int i = 0; i < DB_NAMES.length; i++) {
+			try {
+				results.get(i).get();
+			} catch (Exception e) {
+				LOGGER.log(Level.SEVERE, "Problem checking DB " + DB_NAMES[i], e);
+			}
+		}
+		pool.close();
+		LOGGER.info("Done");
+	}
+	
+	private void checkDb(String dbName) throws SQLException, IOException {
+		try (DbConnection dbc = pool.borrow()) {
 			LOGGER.info("Starting on DB " + dbName);
-			// Have to use "executeDelete" because executeUpdate tries to query the result ID
-			// Nothing actually is deleted
-			dbc.executeDelete("USE " + dbName, null);
+			dbc.useDatabase(dbName);
 			
 			// for each maphash in db
 			ResultSet rs = dbc.executeQuery("SELECT * FROM map", null);
@@ -98,7 +122,7 @@ public class MapChecker {
 				String hash = rs.getString("hash");
 				LOGGER.info("Starting on map " + mapName + " (" + hash + ")");
 				DbData data = new DbData();
-				Map map = loadMapData(hash, data);
+				Map map = loadMapData(dbc, hash, data);
 				if (map == null) {
 					LOGGER.warning("Map " + hash + " failed sanity check");
 					continue;
@@ -111,8 +135,8 @@ public class MapChecker {
 					LOGGER.warning("Map " + hash + " failed sanity check");
 				}
 			}
+			LOGGER.info("Finished DB " + dbName);
 		}
-		LOGGER.info("Done");
 	}
 	
 	private boolean sanityCheck(Map map, DbData data) {
@@ -202,7 +226,8 @@ public class MapChecker {
 		return passing;
 	}
 	
-	private Map loadMapData(String mapHash, DbData out) throws SQLException, IOException {
+	private Map loadMapData(DbConnection dbc, String mapHash, DbData out)
+			throws SQLException, IOException {
 		List<Object> data = new ArrayList<>();
 		data.add(mapHash);
 		// Get map name from DB
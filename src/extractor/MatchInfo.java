@@ -23,6 +23,18 @@ public class MatchInfo {
 	// variables for global values from the DB (per match)
 	public long dbMapId = -1;
 	public long dbReplayId = -1;
+	/**
+	 * Whether this replay already had attribute changes in the DB when the match started (ie. it
+	 * is being extracted again), so new changes need to be checked against the existing ones.
+	 */
+	public boolean attributeChangesInDb = false;
+	/**
+	 * Whether new attribute/visibility changes are bulk loaded, because there were none in the DB
+	 * to check against. Bulk loaded visibility changes' IDs are unknown, but there are also no
+	 * extras to clean up. Attribute changes' IDs are allocated, so are always known.
+	 */
+	public boolean bulkLoadAttributeChanges = false;
+	public boolean bulkLoadVisibilityChanges = false;
 	/** Map player.id -> db PlayerReplayId (globally unique) */
 	public final Map<Integer, Long> playerIdToPlayerReplayId = new HashMap<>();
 	/** Map unit.id -> db UnitId (globally unique) */
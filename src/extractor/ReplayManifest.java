@@ -0,0 +1,240 @@
+package extractor;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import util.DbConnection;
+import util.DbConnection.UncheckedSQLException;
+
+/**
+ * The replay files ExtractActions has processed, from the replayfile table, so a restarted
+ * extraction can skip the replays already stored instead of reconciling each of their rows with
+ * the DB again.
+ * <p>
+ * A replay's row is marked done in the same transaction which stores the replay, so a replay
+ * whose extraction was interrupted has no row (or its earlier one) and is extracted again. Replays
+ * which couldn't be parsed or stored are marked failed, and are also tried again.
+ * <p>
+ * The same game is often found under several file names, so each file's contents are hashed, and
+ * a file with the same contents as one already extracted (or being extracted) is marked as a
+ * duplicate of it instead of being extracted again. Duplicates are checked again on each run, in
+ * case the file they duplicate has changed or failed.
+ */
+class ReplayManifest {
+	/** Status of a replay whose rows were all stored */
+	static final String STATUS_DONE = "done";
+	/** Status of a replay which couldn't be parsed or stored */
+	static final String STATUS_FAILED = "failed";
+	/** Status of a replay with the same contents as another one, which wasn't extracted */
+	static final String STATUS_DUPLICATE = "duplicate";
+	
+	/** The replayfile table, qualified with its DB so it is found when replays are routed */
+	private final String table;
+	/**
+	 * Rows by file name: those loaded, updated as replays are processed, so files changed while
+	 * extraction is running (see {@code ea_watch}) are compared with the latest
+	 */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	/**
+	 * Names of the files extracted, or being extracted by this run, by their hash. Each file
+	 * claims its hash when it is read, so only one of several files with the same contents is
+	 * extracted even if they are read at once. A file which fails gives up its claim.
+	 */
+	private final Map<String, String> fileNamesByHash = new ConcurrentHashMap<>();
+	
+	private ReplayManifest(String table) {
+		this.table = table;
+	}
+	
+	/**
+	 * Load the rows of all the replay files processed before, from the connection's default DB.
+	 * That DB's table is used for all replays, whichever DB they are stored in.
+	 */
+	static ReplayManifest load(DbConnection dbc) throws SQLException {
+		ReplayManifest manifest = new ReplayManifest(dbc.getDefaultDatabase() + ".replayfile");
+		try (Stream<Entry> rows = dbc.streamQuery("SELECT ReplayFileName, FileSize, " +
+				"FileModified, ContentHash, Status FROM " + manifest.table,
+				Collections.emptyList(), rs -> new Entry(rs.getString(1), rs.getLong(2),
+						rs.getLong(3), rs.getString(4), rs.getString(5)))) {
+			rows.forEach(entry -> {
+				manifest.entries.put(entry.fileName, entry);
+				if (STATUS_DONE.equals(entry.status)) {
+					manifest.fileNamesByHash.put(entry.hash, entry.fileName);
+				}
+			});
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+		return manifest;
+	}
+	
+	/** Number of replays done */
+	int getNumDone() {
+		int numDone = 0;
+		for (Entry entry : entries.values()) {
+			if (STATUS_DONE.equals(entry.status)) {
+				numDone++;
+			}
+		}
+		return numDone;
+	}
+	
+	/**
+	 * @return whether the file was stored and hasn't been changed since, judging by its size and
+	 *         modification time so it doesn't need to be read
+	 */
+	boolean isUnchanged(File file) {
+		Entry entry = entries.get(file.getName());
+		return entry != null && STATUS_DONE.equals(entry.status)
+				&& entry.size == file.length() && entry.modified == file.lastModified();
+	}
+	
+	/** @return whether a file with this name and content was stored, even if touched since */
+	boolean isDone(Entry file) {
+		Entry entry = entries.get(file.fileName);
+		return entry != null && STATUS_DONE.equals(entry.status)
+				&& entry.hash.equals(file.hash);
+	}
+	
+	/**
+	 * Claim the file's contents for this file, unless another file with the same contents was
+	 * already extracted or claimed.
+	 * 
+	 * @return the name of the other file with the same contents, or null if there isn't one
+	 */
+	String claim(Entry file) {
+		String fileName = fileNamesByHash.putIfAbsent(file.hash, file.fileName);
+		return fileName == null || fileName.equals(file.fileName) ? null : fileName;
+	}
+	
+	/**
+	 * Mark the replay done. Call this in the transaction storing the replay, so it is only done
+	 * once all its rows are, then call {@link #doneCommitted} once the transaction is committed.
+	 */
+	void markDone(DbConnection dbc, Entry file, int numPlayers, int numUnits, int numActions)
+			throws SQLException {
+		save(dbc, file, STATUS_DONE, null, numPlayers, numUnits, numActions);
+	}
+	
+	/** Record that the transaction which marked the replay done was committed */
+	void doneCommitted(Entry file) {
+		entries.put(file.fileName, file.withStatus(STATUS_DONE));
+	}
+	
+	/**
+	 * Mark the replay failed, so it is tried again next time. Its claim on its contents is given
+	 * up, and any files marked as duplicates of it are marked failed too, as they weren't
+	 * extracted either.
+	 */
+	synchronized void markFailed(DbConnection dbc, Entry file) throws SQLException {
+		fileNamesByHash.remove(file.hash, file.fileName);
+		save(dbc, file, STATUS_FAILED, null, 0, 0, 0);
+		entries.put(file.fileName, file.withStatus(STATUS_FAILED));
+		dbc.stmt("UPDATE " + table + " SET Status=?, DuplicateOf=NULL " +
+				"WHERE DuplicateOf=? AND Status=?")
+				.setString(STATUS_FAILED)
+				.setString(file.fileName)
+				.setString(STATUS_DUPLICATE)
+				.executeUpdate();
+	}
+	
+	/**
+	 * Mark the replay a duplicate of the other file, so it isn't extracted. If the other file
+	 * failed after this one was found to duplicate it, this is marked failed instead.
+	 */
+	synchronized void markDuplicate(DbConnection dbc, Entry file, String duplicateOf)
+			throws SQLException {
+		if (!duplicateOf.equals(fileNamesByHash.get(file.hash))) {
+			markFailed(dbc, file);
+			return;
+		}
+		save(dbc, file, STATUS_DUPLICATE, duplicateOf, 0, 0, 0);
+		entries.put(file.fileName, file.withStatus(STATUS_DUPLICATE));
+	}
+	
+	/** Update the size and modification time of a file found to be done by its content */
+	void updateFileInfo(DbConnection dbc, Entry file) throws SQLException {
+		dbc.stmt("UPDATE " + table + " SET FileSize=?, FileModified=? WHERE ReplayFileName=?")
+				.setLong(file.size)
+				.setLong(file.modified)
+				.setString(file.fileName)
+				.executeUpdate();
+		entries.put(file.fileName, file.withStatus(STATUS_DONE));
+	}
+	
+	private void save(DbConnection dbc, Entry file, String status, String duplicateOf,
+			int numPlayers, int numUnits, int numActions) throws SQLException {
+		dbc.stmt("INSERT INTO " + table + " (ReplayFileName, FileSize, FileModified, " +
+				"ContentHash, Status, DuplicateOf, NumPlayers, NumUnits, NumActions) " +
+				"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+				"ON DUPLICATE KEY UPDATE FileSize=VALUES(FileSize), " +
+				"FileModified=VALUES(FileModified), ContentHash=VALUES(ContentHash), " +
+				"Status=VALUES(Status), DuplicateOf=VALUES(DuplicateOf), " +
+				"NumPlayers=VALUES(NumPlayers), NumUnits=VALUES(NumUnits), " +
+				"NumActions=VALUES(NumActions)")
+				.setString(file.fileName)
+				.setLong(file.size)
+				.setLong(file.modified)
+				.setString(file.hash)
+				.setString(status)
+				.setString(duplicateOf)
+				.setInt(numPlayers)
+				.setInt(numUnits)
+				.setInt(numActions)
+				.executeUpdate();
+	}
+	
+	/** @return the hex SHA-1 of the file's contents, as stored in ContentHash */
+	static String hash(byte[] data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-1
+			throw new IllegalStateException(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest(data)) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+	
+	/** A replay file, as it was when it was read (or processed, if loaded from the DB) */
+	static class Entry {
+		final String fileName;
+		final long size;
+		/** Modification time in milliseconds since the epoch */
+		final long modified;
+		final String hash;
+		/** Status when loaded, or null for a file just read */
+		final String status;
+		
+		Entry(File file, byte[] data) {
+			this(file.getName(), data.length, file.lastModified(), hash(data), null);
+		}
+		
+		/** A file whose hash is already known, eg. from a {@link ReplayPack}'s index */
+		Entry(String fileName, long size, long modified, String hash) {
+			this(fileName, size, modified, hash, null);
+		}
+		
+		private Entry(String fileName, long size, long modified, String hash, String status) {
+			this.fileName = fileName;
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+			this.status = status;
+		}
+		
+		private Entry withStatus(String newStatus) {
+			return new Entry(fileName, size, modified, hash, newStatus);
+		}
+	}
+}
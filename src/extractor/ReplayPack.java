@@ -0,0 +1,213 @@
+package extractor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import util.LogManager;
+
+/**
+ * Many replay files packed into one, so they can be read with large sequential reads of a memory
+ * mapped file instead of listing a folder and opening each small file (which is slow on network
+ * file systems). Replays are read from the pack as {@link ByteBuffer} slices of the map, which
+ * BinRepParser can parse without copying them.
+ * <p>
+ * The format (big-endian) is the magic number, then the contents of each replay, then the index,
+ * then the offset of the index as a long. The index is the number of replays as an int, then for
+ * each its name (as written by {@link DataOutputStream#writeUTF}), offset as a long, length as an
+ * int, and hex SHA-1 (also as UTF).
+ * <p>
+ * To pack the replays in a folder, run this class with the folder and the pack file to create.
+ */
+public class ReplayPack implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(ReplayPack.class.getName());
+	/** Start of every pack file: "SCRPACK" and the format version */
+	private static final long MAGIC = 0x5343525041434B01L;
+	/**
+	 * Maximum size of each part of the pack mapped at once. A map can't be over 2GB, so larger
+	 * packs are mapped in several parts, each ending on a replay boundary.
+	 */
+	private static final long MAX_MAP_BYTES = 1L << 30;
+	
+	private final File file;
+	private final FileChannel channel;
+	private final List<Entry> entries;
+	/** The mapped parts of the file, indexed by {@link Entry#part} */
+	private final List<ByteBuffer> parts = new ArrayList<>();
+	/** Offset in the file of the start of each part */
+	private final List<Long> partOffsets = new ArrayList<>();
+	
+	public static void main(String[] args) {
+		// Start the logger
+		LogManager.initialise("ReplayPack");
+		if (args.length != 2) {
+			LOGGER.severe("Usage: ReplayPack <replay folder> <pack file to create>");
+			return;
+		}
+		try {
+			File folder = new File(args[0]);
+			File[] replays = folder.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".rep");
+				}
+			});
+			if (replays == null) {
+				throw new IOException("Cannot read '" + folder.getAbsolutePath() + "'");
+			}
+			Arrays.sort(replays);
+			write(new File(args[1]), replays);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, e.getMessage(), e);
+		}
+	}
+	
+	/** Pack the replay files into a new pack file, replacing any file already there */
+	public static void write(File packFile, File[] replays) throws IOException {
+		List<Entry> index = new ArrayList<>(replays.length);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(packFile)))) {
+			out.writeLong(MAGIC);
+			long offset = Long.BYTES;
+			for (File replay : replays) {
+				byte[] data = Files.readAllBytes(replay.toPath());
+				out.write(data);
+				index.add(new Entry(replay.getName(), offset, data.length,
+						ReplayManifest.hash(data)));
+				offset += data.length;
+			}
+			out.writeInt(index.size());
+			for (Entry entry : index) {
+				out.writeUTF(entry.name);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+				out.writeUTF(entry.hash);
+			}
+			out.writeLong(offset);
+			LOGGER.info("Packed " + index.size() + " replays (" + offset + " bytes) into "
+					+ packFile.getAbsolutePath());
+		}
+	}
+	
+	/** Open a pack file and read its index */
+	public ReplayPack(File file) throws IOException {
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			ByteBuffer longBuffer = ByteBuffer.allocate(Long.BYTES);
+			channel.read(longBuffer, 0);
+			if (size < 2 * Long.BYTES || longBuffer.getLong(0) != MAGIC) {
+				throw new IOException("'" + file.getAbsolutePath() + "' is not a replay pack");
+			}
+			longBuffer.clear();
+			channel.read(longBuffer, size - Long.BYTES);
+			long indexOffset = longBuffer.getLong(0);
+			channel.position(indexOffset);
+			// Not closed, as that would close the channel
+			DataInput in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel)));
+			int numEntries = in.readInt();
+			List<Entry> index = new ArrayList<>(numEntries);
+			for (int i = 0; i < numEntries; i++) {
+				index.add(new Entry(in.readUTF(), in.readLong(), in.readInt(), in.readUTF()));
+			}
+			entries = Collections.unmodifiableList(index);
+			mapParts();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/** Map the replays' contents, in as few parts as possible */
+	private void mapParts() throws IOException {
+		long partStart = Long.BYTES;
+		long partEnd = partStart;
+		for (Entry entry : entries) {
+			if (entry.offset + entry.length - partStart > MAX_MAP_BYTES) {
+				map(partStart, partEnd);
+				partStart = entry.offset;
+			}
+			entry.part = parts.size();
+			partEnd = entry.offset + entry.length;
+		}
+		map(partStart, partEnd);
+	}
+	
+	private void map(long start, long end) throws IOException {
+		partOffsets.add(start);
+		parts.add(channel.map(MapMode.READ_ONLY, start, end - start));
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/** @return the packed replays, in the order they were packed */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+	
+	/**
+	 * @return the contents of the replay, as a read-only view of the mapped pack, which can be
+	 *         used from any thread while the pack is open
+	 */
+	public ByteBuffer getData(Entry entry) {
+		ByteBuffer data = parts.get(entry.part).duplicate();
+		int start = (int) (entry.offset - partOffsets.get(entry.part));
+		data.position(start);
+		data.limit(start + entry.length);
+		return data.slice();
+	}
+	
+	/** Close the pack file. The mapped contents are unmapped once no longer used. */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/** A replay in the pack's index */
+	public static class Entry {
+		/** Name of the replay file packed */
+		public final String name;
+		/** Offset of the replay's contents in the pack */
+		private final long offset;
+		/** Length of the replay's contents */
+		public final int length;
+		/** Hex SHA-1 of the replay's contents, as in {@link ReplayManifest#hash} */
+		public final String hash;
+		/** Index of the mapped part of the pack with the replay's contents */
+		private int part;
+		
+		private Entry(String name, long offset, int length, String hash) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.hash = hash;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
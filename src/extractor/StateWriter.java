@@ -0,0 +1,495 @@
+package extractor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import util.BulkLoader;
+import util.DbConnection;
+import util.IdAllocator;
+
+/**
+ * Writes the state changes recorded by {@link ExtractStates} to the DB on a separate thread, so
+ * that BWAPI's frame callback doesn't wait on the DB. Frames of changes are queued in a bounded
+ * queue: if the DB falls too far behind, {@link #add(FrameChanges)} blocks until there is space.
+ * <p>
+ * The written rows' IDs are stored in the frame's {@link MatchInfo}, which is safe to read only
+ * after {@link #flush(String)}.
+ * <p>
+ * Changes are committed in transactions covering a number of frames, and when flushed. Rows they
+ * refer to (eg. units) must already be committed by the other connection, or the foreign key
+ * checks here would wait on that connection's locks.
+ * <p>
+ * When the match's {@link MatchInfo} says so, attribute and visibility changes are bulk loaded
+ * instead when committing. New attribute changes get their IDs from an {@link IdAllocator}, so
+ * their IDs are stored however they are sent; bulk loaded visibility changes' IDs aren't.
+ * <p>
+ * If the transaction is picked as a deadlock victim, InnoDB rolls all of it back, so the frames
+ * written since the last commit are written again.
+ */
+class StateWriter implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(StateWriter.class.getName());
+	/** How often threads waiting on the writer check that it is still running */
+	private static final long WAIT_CHECK_MILLIS = 1000;
+	/** Number of times to try writing frames whose transaction is picked as a deadlock victim */
+	private static final int MAX_WRITE_ATTEMPTS = 3;
+	/** SQLState of a transaction rolled back because of a deadlock */
+	private static final String SQL_STATE_DEADLOCK = "40001";
+	
+	private static final String INSERT_ATTRIBUTE_CHANGE = "INSERT INTO attributechange " +
+			"(`AttributeChangeID`,`UnitID`,`ChangeTime`,`AttributeTypeID`,`ChangeVal`) " +
+			"VALUES (?, ?, ?, ?, ?)";
+	private static final String FIND_ATTRIBUTE_CHANGE = "SELECT AttributeChangeID, ChangeVal " +
+			"FROM attributechange WHERE UnitID=? AND ChangeTime=? AND AttributeTypeID=?";
+	private static final String UPDATE_ATTRIBUTE_CHANGE = "UPDATE attributechange SET " +
+			"ChangeVal=? WHERE AttributeChangeID=?";
+	private static final String INSERT_VISIBILITY_CHANGE = "INSERT INTO visibilitychange " +
+			"(`ViewerID`,`UnitID`,`ChangeTime`,`ChangeVal`) VALUES (?, ?, ?, ?)";
+	private static final String INSERT_REGION_VALUE_CHANGE = "INSERT INTO regionvaluechange " +
+			"(PlayerReplayID, RegionID, Frame) VALUES (?, ?, ?)";
+	private static final String UPDATE_REGION_VALUE_CHANGE = "UPDATE regionvaluechange SET " +
+			"GroundUnitValue=?, BuildingValue=?, AirUnitValue=?, EnemyGroundUnitValue=?, " +
+			"EnemyBuildingValue=?, EnemyAirUnitValue=?, ResourceValue=? WHERE ChangeID=?";
+	private static final String INSERT_RESOURCE_CHANGE = "INSERT INTO resourcechange " +
+			"(PlayerReplayID, Frame) VALUES (?, ?)";
+	private static final String UPDATE_RESOURCE_CHANGE = "UPDATE resourcechange SET Minerals=?, " +
+			"Gas=?, Supply=?, TotalMinerals=?, TotalGas=?, TotalSupply=? WHERE ChangeID=?";
+	
+	/** The state changes from one frame, to be written to the DB */
+	static class FrameChanges {
+		private final MatchInfo mi;
+		private final int frame;
+		/** Set only for the marker queued by {@link StateWriter#flush(String)} */
+		private final CountDownLatch flushed;
+		/** Label to dump the writer's SQL profile under when flushed */
+		private final String profileLabel;
+		/** UnitID, ChangeTime, AttributeTypeID, ChangeVal */
+		final Rows attributeChanges = new Rows(4);
+		/** ViewerID, UnitID, ChangeTime, ChangeVal (1 for visible) */
+		final Rows visibilityChanges = new Rows(4);
+		/** PlayerReplayID, RegionID, Frame, then the values in UPDATE_REGION_VALUE_CHANGE order */
+		final Rows regionValueChanges = new Rows(10);
+		/** PlayerReplayID, Frame, then the values in UPDATE_RESOURCE_CHANGE order */
+		final Rows resourceChanges = new Rows(8);
+		
+		FrameChanges(MatchInfo mi, int frame) {
+			this(mi, frame, null, null);
+		}
+		
+		private FrameChanges(MatchInfo mi, int frame, CountDownLatch flushed,
+				String profileLabel) {
+			this.mi = mi;
+			this.frame = frame;
+			this.flushed = flushed;
+			this.profileLabel = profileLabel;
+		}
+		
+		boolean isEmpty() {
+			return attributeChanges.size() == 0 && visibilityChanges.size() == 0
+					&& regionValueChanges.size() == 0 && resourceChanges.size() == 0;
+		}
+	}
+	
+	/** Rows of a fixed number of values, stored unboxed. Values are added one at a time. */
+	static class Rows {
+		private final int width;
+		private long[] values;
+		private int numValues = 0;
+		
+		Rows(int width) {
+			this.width = width;
+			values = new long[width * 8];
+		}
+		
+		/** Add the next value of the current row */
+		Rows put(long value) {
+			if (numValues == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[numValues++] = value;
+			return this;
+		}
+		
+		/** Number of complete rows */
+		int size() {
+			return numValues / width;
+		}
+		
+		long get(int row, int column) {
+			return values[row * width + column];
+		}
+	}
+	
+	private final DbConnection dbc;
+	private final IdAllocator ids;
+	/** Loaders for attribute and visibility changes, or null if bulk loading is disabled */
+	private final BulkLoader attributeLoader;
+	private final BulkLoader visibilityLoader;
+	private final BlockingQueue<FrameChanges> queue;
+	private final Thread thread;
+	/** The number of frames to group into each transaction */
+	private final int commitFrameInterval;
+	/** The frames written since the last commit, in the order they were written */
+	private final List<FrameChanges> uncommitted = new ArrayList<>();
+	/** The match whose attribute changes are being batched, or null if none are */
+	private MatchInfo batchMi = null;
+	
+	/**
+	 * @param dbc the connection to write with. Must not be used by any other thread.
+	 * @param ids allocates new attribute changes' IDs
+	 * @param queueSize the maximum number of frames to queue before blocking
+	 * @param commitFrameInterval the number of frames to group into each transaction
+	 */
+	StateWriter(DbConnection dbc, IdAllocator ids, int queueSize, int commitFrameInterval)
+			throws SQLException {
+		this.dbc = dbc;
+		this.ids = ids;
+		this.commitFrameInterval = commitFrameInterval;
+		queue = new ArrayBlockingQueue<>(queueSize);
+		if (dbc.isBulkLoadEnabled()) {
+			// Kept for the life of the program, like the thread
+			attributeLoader = dbc.bulkLoader("attributechange",
+					"AttributeChangeID, UnitID, ChangeTime, AttributeTypeID, ChangeVal");
+			visibilityLoader = dbc.bulkLoader("visibilitychange",
+					"ViewerID, UnitID, ChangeTime, ChangeVal");
+		} else {
+			attributeLoader = null;
+			visibilityLoader = null;
+		}
+		dbc.beginTransaction();
+		thread = new Thread(this, "StateWriter");
+		// Don't keep the program alive: everything queued is flushed at the end of each match
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Queue a frame's changes to be written, waiting for space if the queue is full
+	 *
+	 * @throws SQLException if the writer has stopped
+	 */
+	void add(FrameChanges changes) throws InterruptedException, SQLException {
+		if (!changes.isEmpty()) {
+			put(changes);
+		}
+	}
+	
+	/**
+	 * Wait until all changes queued so far have been written to the DB, then dump the writer's
+	 * SQL profile under the given label (eg. the replay name)
+	 *
+	 * @throws SQLException if the writer has stopped, so the changes will never be written
+	 */
+	void flush(String profileLabel) throws InterruptedException, SQLException {
+		CountDownLatch flushed = new CountDownLatch(1);
+		put(new FrameChanges(null, -1, flushed, profileLabel));
+		while (!flushed.await(WAIT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkRunning();
+		}
+	}
+	
+	private void put(FrameChanges changes) throws InterruptedException, SQLException {
+		checkRunning();
+		while (!queue.offer(changes, WAIT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkRunning();
+		}
+	}
+	
+	private void checkRunning() throws SQLException {
+		if (!thread.isAlive()) {
+			throw new SQLException("The state writer has stopped");
+		}
+	}
+	
+	@Override
+	public void run() {
+		List<FrameChanges> drained = new ArrayList<>();
+		while (true) {
+			try {
+				drained.add(queue.take());
+			} catch (InterruptedException e) {
+				LOGGER.warning("State writer interrupted. Stopping.");
+				return;
+			}
+			// Write everything that's waiting together, so attribute changes go in fewer batches
+			queue.drainTo(drained);
+			for (FrameChanges changes : drained) {
+				try {
+					writeRetrying(changes);
+				} catch (Exception e) {
+					// Keep writing later frames, rather than leave flush() waiting forever
+					LOGGER.log(Level.SEVERE, "Error Updating State: " + e.getMessage(), e);
+				} finally {
+					if (changes.flushed != null) {
+						changes.flushed.countDown();
+					}
+				}
+			}
+			drained.clear();
+		}
+	}
+	
+	/**
+	 * Write the frame's changes (or flush, for a flush marker). If the transaction is picked as a
+	 * deadlock victim, all the frames written since the last commit are written again.
+	 */
+	private void writeRetrying(FrameChanges changes) throws SQLException {
+		List<FrameChanges> pending = new ArrayList<>();
+		pending.add(changes);
+		for (int attempt = 1; !pending.isEmpty(); ) {
+			FrameChanges next = pending.get(0);
+			try {
+				writeOrFlush(next);
+				pending.remove(0);
+			} catch (SQLException e) {
+				List<FrameChanges> undone = rollback();
+				if (!SQL_STATE_DEADLOCK.equals(e.getSQLState())
+						|| ++attempt > MAX_WRITE_ATTEMPTS) {
+					LOGGER.severe("Discarded the state changes of " + undone.size()
+							+ " frames");
+					throw e;
+				}
+				LOGGER.warning("Deadlock writing state changes, writing " + undone.size()
+						+ " frames again: " + e.getMessage());
+				undone.remove(next);
+				pending.addAll(0, undone);
+			}
+		}
+	}
+	
+	/**
+	 * Write the frame's changes, committing if enough frames were written since the last commit,
+	 * or commit everything written so far for a flush marker
+	 *
+	 * @throws SQLException only if InnoDB rolled back the transaction because of a deadlock
+	 */
+	private void writeOrFlush(FrameChanges changes) throws SQLException {
+		if (changes.flushed != null) {
+			flushAttributeChanges();
+			commit();
+			dbc.getProfiler().dump(changes.profileLabel + " (state writer)");
+			return;
+		}
+		if (batchMi != changes.mi) {
+			flushAttributeChanges();
+		}
+		batchMi = changes.mi;
+		uncommitted.add(changes);
+		try {
+			write(changes);
+		} catch (SQLException e) {
+			if (SQL_STATE_DEADLOCK.equals(e.getSQLState())) {
+				throw e;
+			}
+			// Only the failed statement is undone, so the rest of the frame is kept
+			LOGGER.log(Level.SEVERE, "Error Updating State: " + e.getMessage(), e);
+		}
+		int firstFrame = uncommitted.get(0).frame;
+		if (changes.frame - firstFrame >= commitFrameInterval || changes.frame < firstFrame) {
+			flushAttributeChanges();
+			commit();
+		}
+	}
+	
+	/**
+	 * Load any bulk loaded changes and commit everything written so far. If that fails, it is
+	 * all rolled back rather than committing only some of it.
+	 *
+	 * @throws SQLException only if InnoDB rolled back the transaction because of a deadlock
+	 */
+	private void commit() throws SQLException {
+		try {
+			if (attributeLoader != null) {
+				attributeLoader.load();
+				visibilityLoader.load();
+			}
+			dbc.commit();
+			uncommitted.clear();
+		} catch (SQLException e) {
+			if (SQL_STATE_DEADLOCK.equals(e.getSQLState())) {
+				throw e;
+			}
+			LOGGER.log(Level.SEVERE, "Error committing state changes: " + e.getMessage(), e);
+			LOGGER.severe("Discarded the state changes of " + rollback().size() + " frames");
+		}
+	}
+	
+	/**
+	 * Undo everything written since the last commit, including any batched or bulk loaded
+	 * changes not yet sent, and start a new transaction
+	 *
+	 * @return the frames undone
+	 */
+	private List<FrameChanges> rollback() {
+		List<FrameChanges> undone = new ArrayList<>(uncommitted);
+		uncommitted.clear();
+		batchMi = null;
+		if (attributeLoader != null) {
+			attributeLoader.discard();
+			visibilityLoader.discard();
+		}
+		try {
+			dbc.rollback();
+			dbc.beginTransaction();
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Error rolling back state changes: " + e.getMessage(), e);
+		}
+		return undone;
+	}
+	
+	/**
+	 * Send any batched attribute changes (their IDs are stored when allocated)
+	 *
+	 * @throws SQLException only if InnoDB rolled back the transaction because of a deadlock
+	 */
+	private void flushAttributeChanges() throws SQLException {
+		if (batchMi == null) {
+			return;
+		}
+		try {
+			dbc.flushBatch(INSERT_ATTRIBUTE_CHANGE);
+		} catch (SQLException e) {
+			if (SQL_STATE_DEADLOCK.equals(e.getSQLState())) {
+				throw e;
+			}
+			LOGGER.log(Level.SEVERE, "Error Updating State: " + e.getMessage(), e);
+			dbc.discardBatches();
+		}
+	}
+	
+	private void write(FrameChanges changes) throws SQLException {
+		MatchInfo mi = changes.mi;
+		Rows rows = changes.attributeChanges;
+		for (int i = 0; i < rows.size(); i++) {
+			if (mi.attributeChangesInDb) {
+				// Update an existing incorrect value, or save the new value
+				long id = updateAttributeChange(rows, i);
+				if (id != -1) {
+					mi.allAttributeChangeIds.add(id);
+					continue;
+				}
+			}
+			long id = ids.next("attributechange", "AttributeChangeID");
+			mi.allAttributeChangeIds.add(id);
+			if (mi.bulkLoadAttributeChanges) {
+				attributeLoader.put(id)
+						.put(rows.get(i, 0))
+						.put(rows.get(i, 1))
+						.put(rows.get(i, 2))
+						.put(rows.get(i, 3))
+						.endRow();
+			} else if (!mi.attributeChangesInDb) {
+				// Nothing to check against, so just queue the change to be added
+				bindAttributeChange(dbc.batch(INSERT_ATTRIBUTE_CHANGE).setLong(id), rows, i)
+						.addBatch();
+			} else {
+				bindAttributeChange(dbc.stmt(INSERT_ATTRIBUTE_CHANGE).setLong(id), rows, i)
+						.executeUpdate();
+			}
+		}
+		
+		rows = changes.visibilityChanges;
+		for (int i = 0; i < rows.size(); i++) {
+			if (mi.bulkLoadVisibilityChanges) {
+				visibilityLoader.put(rows.get(i, 0))
+						.put(rows.get(i, 1))
+						.put(rows.get(i, 2))
+						.put(rows.get(i, 3) != 0)
+						.endRow();
+				continue;
+			}
+			long id = dbc.upsert(INSERT_VISIBILITY_CHANGE, "VisibilityChangeID")
+					.setLong(rows.get(i, 0))
+					.setLong(rows.get(i, 1))
+					.setInt((int) rows.get(i, 2))
+					.setBoolean(rows.get(i, 3) != 0)
+					.executeUpsert();
+			mi.allVisibilityChangeIds.add(id);
+		}
+		
+		rows = changes.regionValueChanges;
+		for (int i = 0; i < rows.size(); i++) {
+			long changeId = dbc.upsert(INSERT_REGION_VALUE_CHANGE, "ChangeID")
+					.setLong(rows.get(i, 0))
+					.setLong(rows.get(i, 1))
+					.setInt((int) rows.get(i, 2))
+					.executeUpsert();
+			if (changeId == -1) {
+				LOGGER.severe("Got -1 changeID for regionValueChange " + rows.get(i, 0) + ", "
+						+ rows.get(i, 1) + ", " + rows.get(i, 2));
+				continue;
+			}
+			// Store the change in the db
+			DbConnection.Binder update = dbc.stmt(UPDATE_REGION_VALUE_CHANGE);
+			for (int col = 3; col < 10; col++) {
+				update.setInt((int) rows.get(i, col));
+			}
+			update.setLong(changeId).executeUpdate();
+			mi.allRegionValueChangeIds.add(changeId);
+		}
+		
+		rows = changes.resourceChanges;
+		for (int i = 0; i < rows.size(); i++) {
+			// Ensure there is an entry for this player + frame
+			long changeId = dbc.upsert(INSERT_RESOURCE_CHANGE, "ChangeID")
+					.setLong(rows.get(i, 0))
+					.setInt((int) rows.get(i, 1))
+					.executeUpsert();
+			if (changeId == -1) {
+				LOGGER.severe("-1 changeID for resourcechange: " + rows.get(i, 0) + ", "
+						+ rows.get(i, 1));
+				continue;
+			}
+			// Update the entry with the correct values
+			DbConnection.Binder update = dbc.stmt(UPDATE_RESOURCE_CHANGE);
+			for (int col = 2; col < 8; col++) {
+				update.setInt((int) rows.get(i, col));
+			}
+			update.setLong(changeId).executeUpdate();
+			mi.allResourceChangeIds.add(changeId);
+		}
+	}
+	
+	/**
+	 * Correct the value of an attribute change already in the DB, if there is one.
+	 *
+	 * @return the existing change's ID, or -1 if there isn't one
+	 */
+	private long updateAttributeChange(Rows rows, int i) throws SQLException {
+		long id = -1;
+		long value = -1;
+		try (ResultSet rs = dbc.stmt(FIND_ATTRIBUTE_CHANGE)
+				.setLong(rows.get(i, 0))
+				.setInt((int) rows.get(i, 1))
+				.setInt((int) rows.get(i, 2))
+				.executeQuery()) {
+			if (rs.next()) {
+				id = rs.getLong(1);
+				value = rs.getLong(2);
+			}
+		}
+		if (id != -1 && value != rows.get(i, 3)) {
+			dbc.stmt(UPDATE_ATTRIBUTE_CHANGE)
+					.setInt((int) rows.get(i, 3))
+					.setLong(id)
+					.executeUpdate();
+		}
+		return id;
+	}
+	
+	private static DbConnection.Binder bindAttributeChange(DbConnection.Binder binder, Rows rows,
+			int i) throws SQLException {
+		return binder.setLong(rows.get(i, 0))
+				.setInt((int) rows.get(i, 1))
+				.setInt((int) rows.get(i, 2))
+				.setInt((int) rows.get(i, 3));
+	}
+}
@@ -0,0 +1,76 @@
+package extractor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import util.DbConnection;
+import util.DbConnectionPool;
+import util.PipelineStage;
+
+/**
+ * Checks that a replay file which fails in a pipeline stage gives up its claim on its contents,
+ * so a later file with the same contents is extracted instead of being recorded as a duplicate
+ * of a replay which was never stored. Uses the DB in extractorConfig.properties, and deletes the
+ * replayfile rows it adds.
+ */
+public class TestFailedReplayClaims {
+
+	public static void main(String[] args) throws Exception {
+		String prefix = "test-failed-claims-" + System.currentTimeMillis();
+		// Contents no real replay has, so nothing else claims them
+		byte[] contents = prefix.getBytes(StandardCharsets.UTF_8);
+		String hash = ReplayManifest.hash(contents);
+		ReplayManifest.Entry first = new ReplayManifest.Entry(prefix + "-a.rep", contents.length,
+				0, hash);
+		ReplayManifest.Entry second = new ReplayManifest.Entry(prefix + "-b.rep",
+				contents.length, 0, hash);
+		
+		boolean passed;
+		try (DbConnectionPool pool = new DbConnectionPool(1)) {
+			ReplayManifest manifest;
+			try (DbConnection dbc = pool.borrow()) {
+				manifest = ReplayManifest.load(dbc);
+			}
+			// Claims each file's contents like the read stage, then fails for the first file like
+			// a transform of a replay with a malformed hotkey
+			List<String> extracted = Collections.synchronizedList(new ArrayList<String>());
+			PipelineStage<ReplayManifest.Entry, Void> transform = new PipelineStage<>(
+					"transform", 1, 2, file -> {
+						String duplicateOf = manifest.claim(file);
+						if (duplicateOf != null) {
+							System.out.println(file.fileName + " taken as a duplicate of "
+									+ duplicateOf);
+							return null;
+						}
+						if (file == first) {
+							throw new NumberFormatException("For input string: \"x\"");
+						}
+						extracted.add(file.fileName);
+						return null;
+					}, file -> ExtractActions.recordFailure(pool, manifest, file), null);
+			transform.start();
+			transform.put(first);
+			transform.put(second);
+			transform.finishInput();
+			transform.awaitDone();
+			System.out.println(transform.getStats());
+			passed = extracted.contains(second.fileName);
+			
+			try (DbConnection dbc = pool.borrow()) {
+				List<Object> data = new ArrayList<>();
+				data.add(prefix + "%");
+				dbc.executeUpdate("DELETE FROM replayfile WHERE ReplayFileName LIKE ?", data);
+			}
+		}
+		if (passed) {
+			System.out.println("PASSED: the file with the same contents as a failed one was "
+					+ "extracted");
+		} else {
+			System.out.println("FAILED: the file with the same contents as a failed one wasn't "
+					+ "extracted");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package extractor;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import util.DbConnection;
+import util.DbConnection.UncheckedSQLException;
+
+/**
+ * The unit groups of one player replay by their set of units, so the group selected by a Select
+ * action can be found without querying the DB. The player's groups already in the DB are loaded
+ * once, and groups added afterwards are put in as they are created.
+ * <p>
+ * Each row of a group in the unitgroup table also stores the {@link #hash} of the group's units
+ * in the indexed GroupHash column, so other programs can find a group with one indexed lookup
+ * ({@code WHERE GroupHash=?}). Different groups can have the same hash, so the units of the
+ * groups found must still be compared.
+ */
+class UnitGroupIndex {
+	/** Group ids by their set of units */
+	private final Map<Set<Long>, Long> groupIds = new HashMap<>();
+	
+	/**
+	 * Load the groups of the player replay's units which are already in the DB, and store the
+	 * hash of any groups stored before GroupHash was added.
+	 */
+	static UnitGroupIndex load(DbConnection dbc, long playerReplayId) throws SQLException {
+		Map<Long, Set<Long>> unitsByGroup = new HashMap<>();
+		Set<Long> unhashed = new HashSet<>();
+		try (Stream<long[]> rows = dbc.streamQuery("SELECT UnitGroupID, UnitID, GroupHash " +
+				"FROM unitgroup NATURAL JOIN unit WHERE PlayerReplayID=?", playerReplayId, rs -> {
+					long groupId = rs.getLong(1);
+					long unitId = rs.getLong(2);
+					rs.getLong(3);
+					return new long[] { groupId, unitId, rs.wasNull() ? 1 : 0 };
+				})) {
+			rows.forEach(row -> {
+				Set<Long> units = unitsByGroup.get(row[0]);
+				if (units == null) {
+					units = new HashSet<>();
+					unitsByGroup.put(row[0], units);
+				}
+				units.add(row[1]);
+				if (row[2] != 0) {
+					unhashed.add(row[0]);
+				}
+			});
+		} catch (UncheckedSQLException e) {
+			throw e.getCause();
+		}
+		
+		UnitGroupIndex index = new UnitGroupIndex();
+		for (Map.Entry<Long, Set<Long>> group : unitsByGroup.entrySet()) {
+			index.groupIds.put(group.getValue(), group.getKey());
+			if (unhashed.contains(group.getKey())) {
+				dbc.stmt("UPDATE unitgroup SET GroupHash=? WHERE UnitGroupID=?")
+						.setLong(hash(group.getValue()))
+						.setLong(group.getKey())
+						.executeUpdate();
+			}
+		}
+		return index;
+	}
+	
+	/** @return the id of the group with exactly these units, or -1 if there isn't one */
+	long find(Set<Long> unitIds) {
+		Long groupId = groupIds.get(unitIds);
+		return groupId == null ? -1 : groupId;
+	}
+	
+	/** Add a newly created group */
+	void put(Set<Long> unitIds, long groupId) {
+		groupIds.put(new HashSet<>(unitIds), groupId);
+	}
+	
+	/**
+	 * @return the hash stored in GroupHash for a group of these units, which doesn't depend on
+	 *         their order (FNV-1a of the sorted ids)
+	 */
+	static long hash(Collection<Long> unitIds) {
+		long[] sorted = new long[unitIds.size()];
+		int i = 0;
+		for (long unitId : unitIds) {
+			sorted[i++] = unitId;
+		}
+		Arrays.sort(sorted);
+		long hash = 0xcbf29ce484222325L;
+		for (long unitId : sorted) {
+			for (int shift = 0; shift < 64; shift += 8) {
+				hash ^= (unitId >>> shift) & 0xff;
+				hash *= 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+}
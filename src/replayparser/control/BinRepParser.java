@@ -12,6 +12,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import jnibwapi.types.OrderType.OrderTypes;
 import jnibwapi.types.TechType.TechTypes;
@@ -30,22 +32,13 @@ import replayparser.model.ReplayHeader;
  * @author Andras Belicza
  */
 public class BinRepParser {
+	private static final Logger LOGGER = Logger.getLogger(BinRepParser.class.getName());
 	
 	// public static Vector<Integer> frames = new Vector<Integer>();
 	// public static Vector<Action> trained = new Vector<Action>();
 	private static final Charset CHARSET = Charset.forName("Cp949");
 	private static final byte DELAYED_ACTION = 0x01;
 	private static final short UNIT_ID_NONE = 0;
-	// private static List<Set<Integer>> playerUnitIDs = new ArrayList<>();
-	private static List<Set<Integer>> playerBuildingIDs = new ArrayList<>();
-	private static List<Set<Integer>> selectedIDs = new ArrayList<>();
-	private static List<Set<Integer>> initHQID = new ArrayList<>();
-	private static List<Set<Integer>> initWorkerIDs = new ArrayList<>();
-	private static List<List<Integer>> initLarvaIDs = new ArrayList<>();
-	
-	private static List<Set<Integer>> posBadIteration = new ArrayList<>();
-	private static List<Map<Integer, RPAction>> badIteration = new ArrayList<>();
-	
 	// private static HashSet<Integer> union = new HashSet<Integer>();
 //	private static int[] initUnitsCounter = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
 //	private static int[] initUnitsCount = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
@@ -87,7 +80,39 @@ public class BinRepParser {
 	}
 	
 	/**
-	 * Parses a binary replay file.
+	 * Unit IDs tracked for each player while parsing one replay. Each parse has its own, so
+	 * replays can be parsed on several threads at once.
+	 */
+	private static class ParseContext {
+		// public final List<Set<Integer>> playerUnitIDs = new ArrayList<>();
+		public final List<Set<Integer>> playerBuildingIDs = new ArrayList<>();
+		public final List<Set<Integer>> selectedIDs = new ArrayList<>();
+		public final List<Set<Integer>> initHQID = new ArrayList<>();
+		public final List<Set<Integer>> initWorkerIDs = new ArrayList<>();
+		public final List<List<Integer>> initLarvaIDs = new ArrayList<>();
+		
+		public final List<Set<Integer>> posBadIteration = new ArrayList<>();
+		public final List<Map<Integer, RPAction>> badIteration = new ArrayList<>();
+		
+		/**
+		 * Creates a new ParseContext with empty sets for each player.
+		 */
+		public ParseContext(final int numPlayers) {
+			for (int i = 0; i < numPlayers; i++) {
+				// playerUnitIDs.add(i, new HashSet<Integer>());
+				playerBuildingIDs.add(i, new HashSet<Integer>());
+				selectedIDs.add(i, new HashSet<Integer>());
+				initHQID.add(i, new HashSet<Integer>());
+				initLarvaIDs.add(i, new ArrayList<Integer>());
+				initWorkerIDs.add(i, new HashSet<Integer>());
+				posBadIteration.add(i, new HashSet<Integer>());
+				badIteration.add(i, new HashMap<Integer, RPAction>());
+			}
+		}
+	}
+	
+	/**
+	 * Parses a binary replay file. Safe to call from several threads at once.
 	 * 
 	 * @param replayFile replay file to be parsed
 	 * @param parseCommandsSection tells if player actions have to be parsed from the commands
@@ -98,19 +123,60 @@ public class BinRepParser {
 	 * @return a {@link Replay} object describing the replay; or <code>null</code> if replay cannot
 	 *         be parsed
 	 */
-	@SuppressWarnings({ "unchecked" })
 	public static Replay parseReplay(final File replayFile, final boolean parseCommandsSection,
 			final boolean parseGameChat, final boolean parseMapDataSection,
 			final boolean parseMapTileData) {
-		// playerUnitIDs = new ArrayList<>();
-		playerBuildingIDs = new ArrayList<>();
-		selectedIDs = new ArrayList<>();
-		initHQID = new ArrayList<>();
-		initWorkerIDs = new ArrayList<>();
-		initLarvaIDs = new ArrayList<>();
-		
-		posBadIteration = new ArrayList<>();
-		badIteration = new ArrayList<>();
+		BinReplayUnpacker unpacker = null;
+		try {
+			unpacker = new BinReplayUnpacker(replayFile);
+			return parseReplay(unpacker, parseCommandsSection, parseGameChat,
+					parseMapDataSection, parseMapTileData);
+		} catch (final Exception e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			if (unpacker != null)
+				unpacker.close();
+		}
+	}
+	
+	/**
+	 * Parses the contents of a binary replay file in a buffer, eg. a slice of a memory mapped
+	 * replay pack, without copying them. Safe to call from several threads at once, each with
+	 * their own buffer.
+	 * 
+	 * @param replayData buffer whose remaining bytes are the contents of the replay file
+	 * @see #parseReplay(File, boolean, boolean, boolean, boolean)
+	 */
+	public static Replay parseReplay(final ByteBuffer replayData,
+			final boolean parseCommandsSection, final boolean parseGameChat,
+			final boolean parseMapDataSection, final boolean parseMapTileData) {
+		BinReplayUnpacker unpacker = null;
+		try {
+			unpacker = new BinReplayUnpacker(replayData);
+			return parseReplay(unpacker, parseCommandsSection, parseGameChat,
+					parseMapDataSection, parseMapTileData);
+		} catch (final Exception e) {
+			LOGGER.log(Level.WARNING, "Error parsing replay: " + e.getMessage(), e);
+			return null;
+		} finally {
+			if (unpacker != null)
+				unpacker.close();
+		}
+	}
+	
+	/**
+	 * Parses a replay from its unpacker.
+	 * 
+	 * @return a {@link Replay} object describing the replay; or <code>null</code> if it is not a
+	 *         replay
+	 * @throws Exception if the replay cannot be parsed
+	 */
+	@SuppressWarnings({ "unchecked" })
+	private static Replay parseReplay(final BinReplayUnpacker unpacker,
+			final boolean parseCommandsSection, final boolean parseGameChat,
+			final boolean parseMapDataSection, final boolean parseMapTileData) throws Exception {
+		final ParseContext context = new ParseContext(12);
 		
 		// union = new HashSet<Integer>();
 		
@@ -121,252 +187,233 @@ public class BinRepParser {
 //			initLarvaCounter[i] = 0;
 //		}
 		
-		BinReplayUnpacker unpacker = null;
-		try {
-			unpacker = new BinReplayUnpacker(replayFile);
-			
-			// Replay ID section
-			if (Integer.reverseBytes(ByteBuffer.wrap(unpacker.unpackSection(4)).getInt()) != 0x53526572)
-				return null; // Not a replay file
-				
-			// Replay header section
-			final byte[] headerData = unpacker.unpackSection(HEADER_SIZE);
-			final ByteBuffer headerBuffer = ByteBuffer.wrap(headerData);
-			headerBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			
-			final ReplayHeader replayHeader = new ReplayHeader();
-			replayHeader.gameEngine = headerData[0x00];
-			
-			replayHeader.gameFrames = headerBuffer.getInt(0x01);
-			replayHeader.saveTime = new Date(headerBuffer.getInt(0x08) * 1000l);
-			
-			replayHeader.gameName = getZeroPaddedString(headerData, 0x18, 28);
-			
-			replayHeader.mapWidth = headerBuffer.getShort(0x34);
-			replayHeader.mapHeight = headerBuffer.getShort(0x36);
-			
-			replayHeader.gameSpeed = headerBuffer.getShort(0x3a);
-			replayHeader.gameType = headerBuffer.getShort(0x3c);
-			replayHeader.gameSubType = headerBuffer.getShort(0x3e);
-			
-			replayHeader.creatorName = getZeroPaddedString(headerData, 0x48, 24);
+		// Replay ID section
+		if (Integer.reverseBytes(ByteBuffer.wrap(unpacker.unpackSection(4)).getInt()) != 0x53526572)
+			return null; // Not a replay file
 			
-			// NOTE WAS 26 CHANGED TO 32 BY GLEN
-			replayHeader.mapName = getZeroPaddedString(headerData, 0x61, 32);
-			
-			replayHeader.playerRecords = Arrays.copyOfRange(headerData, 0xa1, 0xa1 + 432);
-			for (int i = 0; i < replayHeader.playerColors.length; i++)
-				replayHeader.playerColors[i] = headerBuffer.getInt(0x251 + i * 4);
-			replayHeader.playerSpotIndices = Arrays.copyOfRange(headerData, 0x271, 0x271 + 8);
-			
-			// Derived data from player records:
-			for (int i = 0; i < 12; i++) {
-				final String playerName = getZeroPaddedString(replayHeader.playerRecords,
-						i * 36 + 11, 25);
-				if (playerName.length() > 0)
-					replayHeader.playerNames[i] = playerName;
-				replayHeader.playerRaces[i] = replayHeader.playerRecords[i * 36 + 9];
+		// Replay header section
+		final byte[] headerData = unpacker.unpackSection(HEADER_SIZE);
+		final ByteBuffer headerBuffer = ByteBuffer.wrap(headerData);
+		headerBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		final ReplayHeader replayHeader = new ReplayHeader();
+		replayHeader.gameEngine = headerData[0x00];
+		
+		replayHeader.gameFrames = headerBuffer.getInt(0x01);
+		replayHeader.saveTime = new Date(headerBuffer.getInt(0x08) * 1000l);
+		
+		replayHeader.gameName = getZeroPaddedString(headerData, 0x18, 28);
+		
+		replayHeader.mapWidth = headerBuffer.getShort(0x34);
+		replayHeader.mapHeight = headerBuffer.getShort(0x36);
+		
+		replayHeader.gameSpeed = headerBuffer.getShort(0x3a);
+		replayHeader.gameType = headerBuffer.getShort(0x3c);
+		replayHeader.gameSubType = headerBuffer.getShort(0x3e);
+		
+		replayHeader.creatorName = getZeroPaddedString(headerData, 0x48, 24);
+		
+		// NOTE WAS 26 CHANGED TO 32 BY GLEN
+		replayHeader.mapName = getZeroPaddedString(headerData, 0x61, 32);
+		
+		replayHeader.playerRecords = Arrays.copyOfRange(headerData, 0xa1, 0xa1 + 432);
+		for (int i = 0; i < replayHeader.playerColors.length; i++)
+			replayHeader.playerColors[i] = headerBuffer.getInt(0x251 + i * 4);
+		replayHeader.playerSpotIndices = Arrays.copyOfRange(headerData, 0x271, 0x271 + 8);
+		
+		// Derived data from player records:
+		for (int i = 0; i < 12; i++) {
+			final String playerName = getZeroPaddedString(replayHeader.playerRecords,
+					i * 36 + 11, 25);
+			if (playerName.length() > 0)
+				replayHeader.playerNames[i] = playerName;
+			replayHeader.playerRaces[i] = replayHeader.playerRecords[i * 36 + 9];
 //				initUnitsCount[i] = ReplayHeader.INIT_UNITS_COUNT;
-				replayHeader.playerIds[i] = replayHeader.playerRecords[i * 36 + 4] & 0xff;
-				// playerUnitIDs.add(i, new HashSet<Integer>());
-				playerBuildingIDs.add(i, new HashSet<Integer>());
-				selectedIDs.add(i, new HashSet<Integer>());
-				initHQID.add(i, new HashSet<Integer>());
-				initLarvaIDs.add(i, new ArrayList<Integer>());
-				initWorkerIDs.add(i, new HashSet<Integer>());
-				posBadIteration.add(i, new HashSet<Integer>());
-				badIteration.add(i, new HashMap<Integer, RPAction>());
-			}
-			
-			if (!parseCommandsSection)
-				return new Replay(replayHeader, null, null, null);
-			
-			// Player commands length section
-			final int playerCommandsLength = Integer.reverseBytes(ByteBuffer.wrap(
-					unpacker.unpackSection(4)).getInt());
-			
-			// Player commands section
-			final ByteBuffer commandsBuffer = ByteBuffer.wrap(unpacker
-					.unpackSection(playerCommandsLength));
-			// System.out.print("Buffer " + commandsBuffer.toString());
-			commandsBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			
-			List<RPAction>[] playerActionLists = null;
-			GameChatWrapper gameChatWrapper = null;
-			if (parseGameChat)
-				gameChatWrapper = new GameChatWrapper(replayHeader.playerNames,
-						replayHeader.playerIds);
-			if (parseCommandsSection) {
-				// This will be indexed by playerId!
-				playerActionLists = new ArrayList[replayHeader.playerNames.length];
-				for (int i = 0; i < playerActionLists.length; i++)
-					playerActionLists[i] = new ArrayList<RPAction>();
-			}
+			replayHeader.playerIds[i] = replayHeader.playerRecords[i * 36 + 4] & 0xff;
+		}
+		
+		if (!parseCommandsSection)
+			return new Replay(replayHeader, null, null, null);
+		
+		// Player commands length section
+		final int playerCommandsLength = Integer.reverseBytes(ByteBuffer.wrap(
+				unpacker.unpackSection(4)).getInt());
+		
+		// Player commands section
+		final ByteBuffer commandsBuffer = ByteBuffer.wrap(unpacker
+				.unpackSection(playerCommandsLength));
+		// System.out.print("Buffer " + commandsBuffer.toString());
+		commandsBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		
+		List<RPAction>[] playerActionLists = null;
+		GameChatWrapper gameChatWrapper = null;
+		if (parseGameChat)
+			gameChatWrapper = new GameChatWrapper(replayHeader.playerNames,
+					replayHeader.playerIds);
+		if (parseCommandsSection) {
+			// This will be indexed by playerId!
+			playerActionLists = new ArrayList[replayHeader.playerNames.length];
+			for (int i = 0; i < playerActionLists.length; i++)
+				playerActionLists[i] = new ArrayList<RPAction>();
+		}
+		
+		while (commandsBuffer.position() < playerCommandsLength) {
+			final int frame = commandsBuffer.getInt();
+			int commandBlocksLength = commandsBuffer.get() & 0xff;
+			final int commandBlocksEndPos = commandsBuffer.position() + commandBlocksLength;
 			
-			while (commandsBuffer.position() < playerCommandsLength) {
-				final int frame = commandsBuffer.getInt();
-				int commandBlocksLength = commandsBuffer.get() & 0xff;
-				final int commandBlocksEndPos = commandsBuffer.position() + commandBlocksLength;
-				
-				while (commandsBuffer.position() < commandBlocksEndPos) {
-					final int playerId = commandsBuffer.get() & 0xff;
-					final RPAction action = readNextAction(frame, commandsBuffer,
-							commandBlocksEndPos, gameChatWrapper, playerId);
-					if (action != null) {
-						// If playerId is outside the index range, throw the implicit exception and
-						// fail to parse replay, else it may contain incorrect actions which may
-						// lead to false hack reports!
-						replayHeader.playerIdActionsCounts[playerId]++;
-						if (frame < ReplayHeader.FRAMES_IN_TWO_MINUTES)
-							replayHeader.playerIdActionsCountBefore2Mins[playerId]++;
-						if (playerActionLists != null)
-							playerActionLists[playerId].add(action);
-						for (int plID = 0; plID < playerId; plID++)
-							if (posBadIteration.get(plID).contains(frame)) {
-								badIteration.get(playerId).put(frame, action);
-								for (RPAction action2 : playerActionLists[plID])
-									badIteration.get(plID).put(frame, action2);
-							}
-					}
+			while (commandsBuffer.position() < commandBlocksEndPos) {
+				final int playerId = commandsBuffer.get() & 0xff;
+				final RPAction action = readNextAction(frame, commandsBuffer,
+						commandBlocksEndPos, gameChatWrapper, context, playerId);
+				if (action != null) {
+					// If playerId is outside the index range, throw the implicit exception and
+					// fail to parse replay, else it may contain incorrect actions which may
+					// lead to false hack reports!
+					replayHeader.playerIdActionsCounts[playerId]++;
+					if (frame < ReplayHeader.FRAMES_IN_TWO_MINUTES)
+						replayHeader.playerIdActionsCountBefore2Mins[playerId]++;
+					if (playerActionLists != null)
+						playerActionLists[playerId].add(action);
+					for (int plID = 0; plID < playerId; plID++)
+						if (context.posBadIteration.get(plID).contains(frame)) {
+							context.badIteration.get(playerId).put(frame, action);
+							for (RPAction action2 : playerActionLists[plID])
+								context.badIteration.get(plID).put(frame, action2);
+						}
 				}
 			}
-			
-			// Fill the last action frames array
-			if (playerActionLists != null)
-				for (int i = 0; i < playerActionLists.length; i++) {
-					final List<RPAction> playerActionList = playerActionLists[i];
-					if (!playerActionList.isEmpty())
-						replayHeader.playerIdLastActionFrame[i] = playerActionList
-								.get(playerActionList.size() - 1).frame;
-				}
-			
-			List<Player> players = null;
-			if (parseCommandsSection) {
-				players = new ArrayList<Player>();
-				for (int i = 0; i < replayHeader.playerNames.length; i++)
-					// Computers are listed with playerId values of 0xff, but no actions are
-					// recorded from them.
-					if (replayHeader.playerNames[i] != null && replayHeader.playerIds[i] != 0xff)
-						players.add(new Player(replayHeader.playerNames[i],
-								playerActionLists[replayHeader.playerIds[i]], replayHeader));
+		}
+		
+		// Fill the last action frames array
+		if (playerActionLists != null)
+			for (int i = 0; i < playerActionLists.length; i++) {
+				final List<RPAction> playerActionList = playerActionLists[i];
+				if (!playerActionList.isEmpty())
+					replayHeader.playerIdLastActionFrame[i] = playerActionList
+							.get(playerActionList.size() - 1).frame;
 			}
+		
+		List<Player> players = null;
+		if (parseCommandsSection) {
+			players = new ArrayList<Player>();
+			for (int i = 0; i < replayHeader.playerNames.length; i++)
+				// Computers are listed with playerId values of 0xff, but no actions are
+				// recorded from them.
+				if (replayHeader.playerNames[i] != null && replayHeader.playerIds[i] != 0xff)
+					players.add(new Player(replayHeader.playerNames[i],
+							playerActionLists[replayHeader.playerIds[i]], replayHeader));
+		}
+		
+		MapData mapData = parseMapTileData ? new MapData() : null;
+		if (parseMapDataSection) {
+			// Map data length section
+			final int mapDataLength = Integer.reverseBytes(ByteBuffer.wrap(
+					unpacker.unpackSection(4)).getInt());
 			
-			MapData mapData = parseMapTileData ? new MapData() : null;
-			if (parseMapDataSection) {
-				// Map data length section
-				final int mapDataLength = Integer.reverseBytes(ByteBuffer.wrap(
-						unpacker.unpackSection(4)).getInt());
-				
-				// Map data section
-				final ByteBuffer mapDataBuffer = ByteBuffer.wrap(unpacker
-						.unpackSection(mapDataLength));
-				mapDataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			// Map data section
+			final ByteBuffer mapDataBuffer = ByteBuffer.wrap(unpacker
+					.unpackSection(mapDataLength));
+			mapDataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			final byte[] sectionNameBuffer = new byte[4];
+			/** Name of the dimension section in the map data replay section. */
+			final String SECTION_NAME_DIMENSION = "DIM ";
+			/** Name of the tile section in the map data replay section. */
+			final String SECTION_NAME_MTXM = "MTXM";
+			/** Name of the tile set section in the map data replay section. */
+			final String SECTION_NAME_ERA = "ERA ";
+			/** Name of the unit section in the map data replay section. */
+			final String SECTION_NAME_UNIT = "UNIT";
+			// Other sections: OWNR,UNIS,PUPx,UNIx,DD2,UNIT,SIDE,MRGN,ERA,MASK,PTEC,DIM
+			while (mapDataBuffer.position() < mapDataLength) {
+				mapDataBuffer.get(sectionNameBuffer);
+				final String sectionName = new String(sectionNameBuffer, "US-ASCII");
+				final int sectionLength = mapDataBuffer.getInt();
+				final int sectionEndPos = mapDataBuffer.position() + sectionLength;
 				
-				final byte[] sectionNameBuffer = new byte[4];
-				/** Name of the dimension section in the map data replay section. */
-				final String SECTION_NAME_DIMENSION = "DIM ";
-				/** Name of the tile section in the map data replay section. */
-				final String SECTION_NAME_MTXM = "MTXM";
-				/** Name of the tile set section in the map data replay section. */
-				final String SECTION_NAME_ERA = "ERA ";
-				/** Name of the unit section in the map data replay section. */
-				final String SECTION_NAME_UNIT = "UNIT";
-				// Other sections: OWNR,UNIS,PUPx,UNIx,DD2,UNIT,SIDE,MRGN,ERA,MASK,PTEC,DIM
-				while (mapDataBuffer.position() < mapDataLength) {
-					mapDataBuffer.get(sectionNameBuffer);
-					final String sectionName = new String(sectionNameBuffer, "US-ASCII");
-					final int sectionLength = mapDataBuffer.getInt();
-					final int sectionEndPos = mapDataBuffer.position() + sectionLength;
-					
-					if (sectionName.equals(SECTION_NAME_UNIT)) {
-						if (parseMapTileData) {
-							while (mapDataBuffer.position() < sectionEndPos) {
-								// 36 bytes per unit
-								final int unitEndPos = mapDataBuffer.position() + 36;
-								mapDataBuffer.getInt(); // unknown
-								final short x = mapDataBuffer.getShort();
-								final short y = mapDataBuffer.getShort();
-								final short type = mapDataBuffer.getShort();
-								mapDataBuffer.getShort(); // unknown
-								mapDataBuffer.getShort(); // special properties flag
-								mapDataBuffer.getShort(); // valid elements flag
-								final byte owner = mapDataBuffer.get();
-								
-								if (type == UnitTypes.Resource_Mineral_Field.getID()
-										|| type == UnitTypes.Resource_Mineral_Field_Type_2.getID()
-										|| type == UnitTypes.Resource_Mineral_Field_Type_3.getID()) {
-									mapData.mineralFieldList.add(new short[] { x, y });
-								}
-								else if (type == UnitTypes.Resource_Vespene_Geyser.getID()) {
-									mapData.geyserList.add(new short[] { x, y });
-								}
-								else if (type == UnitTypes.Special_Start_Location.getID()) {
-									mapData.startLocationList.add(new int[] { x, y, owner });
-								}
-								// We might not processed all unit data
-								if (mapDataBuffer.position() < unitEndPos)
-									mapDataBuffer.position(unitEndPos < mapDataLength ? unitEndPos
-											: mapDataLength);
+				if (sectionName.equals(SECTION_NAME_UNIT)) {
+					if (parseMapTileData) {
+						while (mapDataBuffer.position() < sectionEndPos) {
+							// 36 bytes per unit
+							final int unitEndPos = mapDataBuffer.position() + 36;
+							mapDataBuffer.getInt(); // unknown
+							final short x = mapDataBuffer.getShort();
+							final short y = mapDataBuffer.getShort();
+							final short type = mapDataBuffer.getShort();
+							mapDataBuffer.getShort(); // unknown
+							mapDataBuffer.getShort(); // special properties flag
+							mapDataBuffer.getShort(); // valid elements flag
+							final byte owner = mapDataBuffer.get();
+							
+							if (type == UnitTypes.Resource_Mineral_Field.getID()
+									|| type == UnitTypes.Resource_Mineral_Field_Type_2.getID()
+									|| type == UnitTypes.Resource_Mineral_Field_Type_3.getID()) {
+								mapData.mineralFieldList.add(new short[] { x, y });
 							}
+							else if (type == UnitTypes.Resource_Vespene_Geyser.getID()) {
+								mapData.geyserList.add(new short[] { x, y });
+							}
+							else if (type == UnitTypes.Special_Start_Location.getID()) {
+								mapData.startLocationList.add(new int[] { x, y, owner });
+							}
+							// We might not processed all unit data
+							if (mapDataBuffer.position() < unitEndPos)
+								mapDataBuffer.position(unitEndPos < mapDataLength ? unitEndPos
+										: mapDataLength);
 						}
 					}
-					else if (sectionName.equals(SECTION_NAME_DIMENSION)) {
-						// If map has a non-standard size, the replay header contains invalid map
-						// size, this is the correct one
-						final short newWidth = mapDataBuffer.getShort();
-						final short newHeight = mapDataBuffer.getShort();
-						// Sometimes newWidth and newHeight is 0, we don't want to overwrite the
-						// size with wrong values!
-						// And sometimes it contains some insane values, we just ignore them
-						if (newWidth <= 256 && newHeight <= 256) {
-							if (newWidth > replayHeader.mapWidth)
-								replayHeader.mapWidth = newWidth;
-							if (newHeight > replayHeader.mapHeight)
-								replayHeader.mapHeight = newHeight;
-						}
-						if (!parseMapTileData)
-							break; // We only needed the dimension section
-					}
-					else if (sectionName.equals(SECTION_NAME_MTXM)) {
-						if (parseMapTileData) {
-							final int maxI = sectionLength / 2; // This is map_width*map_height
-							// Sometimes map is broken into multiple sections. The first one is the
-							// biggest (whole map size), but the beginning of map is empty
-							// The subsequent MTXM sections will fill the whole at the beginning.
-							if (mapData.tiles == null)
-								mapData.tiles = new short[maxI];
-							for (int i = 0; i < maxI; i++)
-								mapData.tiles[i] = mapDataBuffer.getShort();
-						}
+				}
+				else if (sectionName.equals(SECTION_NAME_DIMENSION)) {
+					// If map has a non-standard size, the replay header contains invalid map
+					// size, this is the correct one
+					final short newWidth = mapDataBuffer.getShort();
+					final short newHeight = mapDataBuffer.getShort();
+					// Sometimes newWidth and newHeight is 0, we don't want to overwrite the
+					// size with wrong values!
+					// And sometimes it contains some insane values, we just ignore them
+					if (newWidth <= 256 && newHeight <= 256) {
+						if (newWidth > replayHeader.mapWidth)
+							replayHeader.mapWidth = newWidth;
+						if (newHeight > replayHeader.mapHeight)
+							replayHeader.mapHeight = newHeight;
 					}
-					else if (sectionName.equals(SECTION_NAME_ERA)) {
-						if (parseMapTileData)
-							mapData.tileSet = mapDataBuffer.getShort();
+					if (!parseMapTileData)
+						break; // We only needed the dimension section
+				}
+				else if (sectionName.equals(SECTION_NAME_MTXM)) {
+					if (parseMapTileData) {
+						final int maxI = sectionLength / 2; // This is map_width*map_height
+						// Sometimes map is broken into multiple sections. The first one is the
+						// biggest (whole map size), but the beginning of map is empty
+						// The subsequent MTXM sections will fill the whole at the beginning.
+						if (mapData.tiles == null)
+							mapData.tiles = new short[maxI];
+						for (int i = 0; i < maxI; i++)
+							mapData.tiles[i] = mapDataBuffer.getShort();
 					}
-					// Part or all the section might be unprocessed, skip the unprocessed bytes
-					if (mapDataBuffer.position() < sectionEndPos)
-						mapDataBuffer.position(sectionEndPos < mapDataLength ? sectionEndPos
-								: mapDataLength);
 				}
-				// We might have skipped some parts of map data, so we position to the end
-				if (mapDataBuffer.position() < mapDataLength) 
-					mapDataBuffer.position(mapDataLength);
-			}
-			Replay rReplay = new Replay(replayHeader, players, gameChatWrapper == null ? null
-					: gameChatWrapper.gameChatBuilder.toString(), mapData);
-			// rReplay.playerToUnitIds = playerUnitIDs;
-			rReplay.initHQID = initHQID;
-			rReplay.badIteration = badIteration;
-			rReplay.initLarvaIDs = initLarvaIDs;
-			rReplay.initWorkerIDs = initWorkerIDs;
-			return rReplay;
-		} catch (final Exception e) {
-			e.printStackTrace();
-			return null;
-		} finally {
-			if (unpacker != null)
-				unpacker.close();
+				else if (sectionName.equals(SECTION_NAME_ERA)) {
+					if (parseMapTileData)
+						mapData.tileSet = mapDataBuffer.getShort();
+				}
+				// Part or all the section might be unprocessed, skip the unprocessed bytes
+				if (mapDataBuffer.position() < sectionEndPos)
+					mapDataBuffer.position(sectionEndPos < mapDataLength ? sectionEndPos
+							: mapDataLength);
+			}
+			// We might have skipped some parts of map data, so we position to the end
+			if (mapDataBuffer.position() < mapDataLength) 
+				mapDataBuffer.position(mapDataLength);
 		}
+		Replay rReplay = new Replay(replayHeader, players, gameChatWrapper == null ? null
+				: gameChatWrapper.gameChatBuilder.toString(), mapData);
+		// rReplay.playerToUnitIds = context.playerUnitIDs;
+		rReplay.initHQID = context.initHQID;
+		rReplay.badIteration = context.badIteration;
+		rReplay.initLarvaIDs = context.initLarvaIDs;
+		rReplay.initWorkerIDs = context.initWorkerIDs;
+		return rReplay;
 	}
 	
 	/**
@@ -397,10 +444,12 @@ public class BinRepParser {
 	 * @param commandsBuffer commands buffer to be read from
 	 * @param commandBlocksEndPos end position of the current command blocks
 	 * @param gameChatWrapper game chat wrapper to be used if game chat is desired
+	 * @param context unit IDs tracked while parsing this replay
 	 * @return the next action object
 	 */
 	private static RPAction readNextAction(final int frame, final ByteBuffer commandsBuffer,
-			final int commandBlocksEndPos, final GameChatWrapper gameChatWrapper, final int playerId) {
+			final int commandBlocksEndPos, final GameChatWrapper gameChatWrapper,
+			final ParseContext context, final int playerId) {
 		final byte actionId = commandsBuffer.get();
 		
 		RPAction action = null;
@@ -410,14 +459,14 @@ public class BinRepParser {
 			case (byte) 0x09: // Select units
 			case (byte) 0x0a: // Shift select units
 			case (byte) 0x0b: { // Shift deselect units
-				selectedIDs.get(playerId).clear();
+				context.selectedIDs.get(playerId).clear();
 				int unitsCount = commandsBuffer.get() & 0xff;
 				HashSet<Integer> selectedUnitIds = new HashSet<Integer>();
 				for (; unitsCount > 0; unitsCount--) {
 					short unitID = commandsBuffer.getShort();
 					try {
 						int clearUnitID = getJniBwapiID(unitID);
-						selectedIDs.get(playerId).add(new Integer(clearUnitID));
+						context.selectedIDs.get(playerId).add(new Integer(clearUnitID));
 						selectedUnitIds.add(clearUnitID);
 					} catch (UnitIDException e) {
 						e.printStackTrace();
@@ -449,7 +498,7 @@ public class BinRepParser {
 				// action = new RPAction( frame, UnitCommandType.UnitCommandTypes.Build,
 				// RPAction.ID_TO_UNITTYPE.get( (int)typeId ), tileX, tileY, -1 );
 				// trained.add(action);
-				posBadIteration.get(playerId).add(frame);
+				context.posBadIteration.get(playerId).add(frame);
 				break;
 			}
 			case (byte) 0x0d: { // Vision
@@ -475,7 +524,7 @@ public class BinRepParser {
 				break;
 			}
 			case (byte) 0x13: { // Hotkey
-				selectedIDs.get(playerId).clear();
+				context.selectedIDs.get(playerId).clear();
 				final byte type = commandsBuffer.get();
 				final byte slot = commandsBuffer.get();
 				action = new RPAction(frame,
@@ -504,9 +553,9 @@ public class BinRepParser {
 					action = new RPAction(frame, UnitCommandTypes.Move, posX, posY, bwapiUnitId,
 							commandType == DELAYED_ACTION);
 //					if (initWorkerCounter[playerId] < ReplayHeader.INIT_WORKER_COUNT) {
-//						for (Integer id : selectedIDs.get(playerId)) {
-//							if (!initWorkerIDs.get(playerId).contains(id)) {
-//								initWorkerIDs.get(playerId).add(id);
+//						for (Integer id : context.selectedIDs.get(playerId)) {
+//							if (!context.initWorkerIDs.get(playerId).contains(id)) {
+//								context.initWorkerIDs.get(playerId).add(id);
 //								initWorkerCounter[playerId]++;
 //							}
 //						}
@@ -535,7 +584,7 @@ public class BinRepParser {
 				// case (byte) 0x00:
 				// case (byte) 0x06: // Move with right click or Move by click move icon
 				// // actionNameIndex = RPAction.ANI_MOVE ;
-				// playerUnitIDs.get(playerId).addAll(selectedIDs.get(playerId));
+				// playerUnitIDs.get(playerId).addAll(context.selectedIDs.get(playerId));
 				// break;
 				// }
 				int bwapiUnitId = -1;
@@ -562,11 +611,11 @@ public class BinRepParser {
 				action = new RPAction(frame, UnitCommandTypes.Train, typeId, false);
 				// trained.add(action);
 				// System.out.println("new Unit: " + Action.UNIT_ID_NAME_MAP.get(unitId));
-				playerBuildingIDs.get(playerId).addAll(selectedIDs.get(playerId));
-				posBadIteration.get(playerId).add(frame);
+				context.playerBuildingIDs.get(playerId).addAll(context.selectedIDs.get(playerId));
+				context.posBadIteration.get(playerId).add(frame);
 //				if (initUnitsCounter[playerId] < initUnitsCount[playerId]) {
-//					for (Integer id : selectedIDs.get(playerId)) {
-//						if (initHQID.get(playerId).add(id)) {
+//					for (Integer id : context.selectedIDs.get(playerId)) {
+//						if (context.initHQID.get(playerId).add(id)) {
 //							initUnitsCounter[playerId]++;
 //						}
 //					}
@@ -588,14 +637,14 @@ public class BinRepParser {
 			case (byte) 0x23: { // Morph (Unit)
 				final short typeId = commandsBuffer.getShort();
 				action = new RPAction(frame, UnitCommandTypes.Morph, typeId, false);
-				for (Integer id : selectedIDs.get(playerId)) {
-					if (initLarvaIDs.get(playerId).contains(id)) {
+				for (Integer id : context.selectedIDs.get(playerId)) {
+					if (context.initLarvaIDs.get(playerId).contains(id)) {
 						// set the element at the end
-						initLarvaIDs.get(playerId).remove(id);
-						initLarvaIDs.get(playerId).add(id);
+						context.initLarvaIDs.get(playerId).remove(id);
+						context.initLarvaIDs.get(playerId).add(id);
 					}
 //					if (initLarvaCounter[playerId] < ReplayHeader.INIT_LARVA_COUNT) {
-//						if (initLarvaIDs.get(playerId).add(id)) {
+//						if (context.initLarvaIDs.get(playerId).add(id)) {
 //							initLarvaCounter[playerId]++;
 //						}
 //					}
@@ -3,6 +3,7 @@ package replayparser.control;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
@@ -50,8 +51,8 @@ public class BinReplayUnpacker {
 	};
 	
 	
-	/** Input stream of the replay file. */
-	private final FileInputStream input;
+	/** Input stream of the replay file (or its contents). */
+	private final InputStream input;
 	
 	/** Buffer to be used to read int numbers.          */
 	private final byte[] intBuffer;
@@ -79,6 +80,46 @@ public class BinReplayUnpacker {
 		buffer    = new byte[ 0x2000 ];
 	}
 	
+	/**
+	 * Creates a new BinReplayUnpacker of a replay file's contents in a buffer, eg. a slice of a
+	 * memory mapped replay pack. The buffer's position and limit are not changed.
+	 * @param replayData buffer whose remaining bytes are the contents of the replay file
+	 * @throws Exception if it is not a replay file (based on its size)
+	 */
+	public BinReplayUnpacker( final ByteBuffer replayData ) throws Exception {
+		if ( replayData.remaining() < BinRepParser.HEADER_SIZE + 8 ) // Not enough data for id, header and commands length
+			throw new Exception( "Not a replay file!" );
+		input = new ByteBufferInputStream( replayData.duplicate() );
+		
+		intBuffer = new byte[ INT_SIZE ];
+		buffer    = new byte[ 0x2000 ];
+	}
+	
+	/** Reads a buffer's remaining bytes as a stream, without copying them. */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer data;
+		
+		ByteBufferInputStream( final ByteBuffer data ) {
+			this.data = data;
+		}
+		
+		@Override
+		public int read() {
+			return data.hasRemaining() ? data.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read( final byte[] b, final int off, final int len ) {
+			if ( len == 0 )
+				return 0;
+			if ( !data.hasRemaining() )
+				return -1;
+			final int n = Math.min( len, data.remaining() );
+			data.get( b, off, n );
+			return n;
+		}
+	}
+	
 	private static class ReplayEnc {
 		byte[] src;
 		int    m04;
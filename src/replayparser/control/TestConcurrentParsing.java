@@ -0,0 +1,109 @@
+package replayparser.control;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import replayparser.model.Player;
+import replayparser.model.RPAction;
+import replayparser.model.Replay;
+
+/**
+ * Parses the replays in a folder on several threads at once, and checks each result matches the
+ * replay parsed on its own. Any state shared between parses would make some of them differ.
+ * <p>
+ * Usage: TestConcurrentParsing &lt;replay folder&gt; [threads] [times to parse each replay]
+ */
+public class TestConcurrentParsing {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: TestConcurrentParsing <replay folder> [threads] [rounds]");
+			return;
+		}
+		File[] replays = new File(args[0]).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".rep");
+			}
+		});
+		if (replays == null || replays.length == 0) {
+			System.out.println("No replays found in " + args[0]);
+			return;
+		}
+		Arrays.sort(replays);
+		int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		
+		Map<File, String> expected = new HashMap<>();
+		long start = System.currentTimeMillis();
+		for (File replay : replays) {
+			expected.put(replay, describe(replay));
+		}
+		System.out.println(String.format("Parsed %d replays serially in %d ms", replays.length,
+				System.currentTimeMillis() - start));
+		
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<File> submitted = new ArrayList<>();
+		List<Future<String>> results = new ArrayList<>();
+		start = System.currentTimeMillis();
+		for (int round = 0; round < rounds; round++) {
+			for (final File replay : replays) {
+				submitted.add(replay);
+				results.add(executor.submit(() -> describe(replay)));
+			}
+		}
+		int numDifferent = 0;
+		for (int i = 0; i < results.size(); i++) {
+			File replay = submitted.get(i);
+			if (!expected.get(replay).equals(results.get(i).get())) {
+				System.out.println("MISMATCH: " + replay.getName()
+						+ " parsed differently on several threads");
+				numDifferent++;
+			}
+		}
+		executor.shutdown();
+		System.out.println(String.format("Parsed %d replays on %d threads in %d ms: %d differed",
+				results.size(), numThreads, System.currentTimeMillis() - start, numDifferent));
+		if (numDifferent > 0) {
+			System.exit(1);
+		}
+	}
+	
+	/** @return everything parsed from the replay, as text which is the same for equal parses */
+	private static String describe(File replayFile) {
+		Replay replay = BinRepParser.parseReplay(replayFile, true, false, false, false);
+		if (replay == null) {
+			return "unparseable";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(replay.header.mapName).append(' ').append(replay.header.gameFrames)
+				.append('\n');
+		for (int i = 0; i < replay.initHQID.size(); i++) {
+			sb.append(new TreeSet<>(replay.initHQID.get(i)))
+					.append(new TreeSet<>(replay.initWorkerIDs.get(i)))
+					.append(replay.initLarvaIDs.get(i))
+					.append(new TreeSet<>(replay.badIteration.get(i).keySet())).append('\n');
+		}
+		for (Player p : replay.players) {
+			sb.append(p.name).append(' ').append(p.race).append('\n');
+			for (RPAction a : p.actions) {
+				sb.append(a.frame).append(' ').append(a.rAction).append(' ')
+						.append(a.unitCommand).append(' ').append(a.order).append(' ')
+						.append(a.targetId).append(' ').append(a.x).append(' ').append(a.y)
+						.append(' ').append(a.delayedAction).append(' ').append(a.stringParams)
+						.append(' ').append(a.selectedUnitIds == null ? null
+								: new TreeSet<>(a.selectedUnitIds)).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+}
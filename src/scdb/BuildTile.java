@@ -20,6 +20,9 @@ public class BuildTile {
 	}
 	
 	public final long buildTileIdDb;
+	/** Position on the map, in build tiles */
+	public final int x;
+	public final int y;
 	public final GroundHeight groundHeight;
 	public final boolean buildable;
 	/** 16 binary values, ordering is in columns, not rows */
@@ -29,9 +32,12 @@ public class BuildTile {
 	public final int startLocationDist;
 	public final int regionId;
 	
-	public BuildTile(long buildTileIdDb, int groundHeightId, boolean buildable, int walkable,
-			int chokeDist, int baseLocationDist, int startLocationDist, int regionId) {
+	public BuildTile(long buildTileIdDb, int x, int y, int groundHeightId, boolean buildable,
+			int walkable, int chokeDist, int baseLocationDist, int startLocationDist,
+			int regionId) {
 		this.buildTileIdDb = buildTileIdDb;
+		this.x = x;
+		this.y = y;
 		this.groundHeight = GroundHeight.values()[groundHeightId];
 		this.buildable = buildable;
 		this.walkable = walkable;
@@ -42,8 +48,9 @@ public class BuildTile {
 	}
 	
 	protected BuildTile(ResultSet rs) throws SQLException {
-		this(rs.getLong("BuildTileID"), rs.getInt("GroundHeightID"), rs.getBoolean("Buildable"),
-				rs.getInt("Walkable"), rs.getInt("ChokeDist"), rs.getInt("BaseLocationDist"),
+		this(rs.getLong("BuildTileID"), rs.getInt("BTilePosX"), rs.getInt("BTilePosY"),
+				rs.getInt("GroundHeightID"), rs.getBoolean("Buildable"), rs.getInt("Walkable"),
+				rs.getInt("ChokeDist"), rs.getInt("BaseLocationDist"),
 				rs.getInt("StartLocationDist"), rs.getInt("RegionID"));
 	}
 	
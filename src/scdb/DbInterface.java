@@ -6,11 +6,16 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import util.DbConnection;
+import util.DbConnectionPool;
 
 /**
  * Provide a nice interface for reading from the database. Note that items are not cached at all, so
  * if you get objects from multiple calls they will not be references to the same objects even if
  * they represent the same thing, but they can be compared correctly using equals.
+ * <p>
+ * Each thread reading from the database gets its own connection from a pool of
+ * {@code db_pool_size} connections, so multiple threads can query in parallel. Threads other than
+ * the main thread should call {@link #releaseDbc()} when finished.
  * 
  * @author Glen Robertson
  * 
@@ -24,22 +29,26 @@ public class DbInterface {
 		return instance;
 	}
 	
-	private final DbConnection dbc;
+	private final DbConnectionPool pool;
 	
 	/** Never actually throws the exception, will exit() instead */
 	private DbInterface() {
-		DbConnection dbc = null;
+		DbConnectionPool pool = null;
 		try {
-			dbc = new DbConnection();
+			pool = new DbConnectionPool();
+			// Check the DB can be connected to
+			pool.getForThread();
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, "Problem loading properties file", e);
+			pool = null;
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Problem connecting to database", e);
+			pool = null;
 		}
-		if (dbc == null) {
+		if (pool == null) {
 			System.exit(1);
 		}
-		this.dbc = dbc;
+		this.pool = pool;
 		try {
 			OfflineJNIBWAPI.loadOfflineJNIBWAPIData();
 		} catch (IOException e) {
@@ -47,8 +56,20 @@ public class DbInterface {
 		}
 	}
 	
+	/** Get the current thread's connection. Never actually throws, will exit() instead */
 	public DbConnection getDbc() {
-		return dbc;
+		try {
+			return pool.getForThread();
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Problem connecting to database", e);
+			System.exit(1);
+			return null;
+		}
+	}
+	
+	/** Return the current thread's connection to the pool, if it has one */
+	public void releaseDbc() {
+		pool.releaseForThread();
 	}
 
 }
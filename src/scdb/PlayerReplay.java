@@ -10,11 +10,13 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import jnibwapi.types.RaceType;
 import jnibwapi.types.RaceType.RaceTypes;
 import jnibwapi.types.UnitCommandType.UnitCommandTypes;
 import util.DbConnection;
+import util.DbConnection.UncheckedSQLException;
 import util.UnitAttributes.UnitAttribute;
 
 public class PlayerReplay {
@@ -67,46 +69,43 @@ public class PlayerReplay {
 	 * Get all actions by this player, in frame order, between frameStart and frameEnd (inclusive)
 	 */
 	public List<Action> getActions(int frameStart, int frameEnd) {
+		try (Stream<Action> actions = streamActions(frameStart, frameEnd)) {
+			return actions.collect(Collectors.toList());
+		} catch (SQLException | UncheckedSQLException e) {
+			LOGGER.log(Level.SEVERE, "Getting actions failed for player " + playerReplayIdDb, e);
+		}
+		return new ArrayList<>();
+	}
+	
+	/**
+	 * Stream the actions by this player, in frame order, between frameStart and frameEnd
+	 * (inclusive), without holding them all in memory. The stream must be closed before the
+	 * thread's connection is used again, see {@link DbConnection#streamQuery}.
+	 */
+	public Stream<Action> streamActions(int frameStart, int frameEnd) throws SQLException {
 		DbConnection dbc = DbInterface.getInstance().getDbc();
-		List<Action> actions = new ArrayList<>();
 		List<Object> data = new ArrayList<>();
 		data.add(playerReplayIdDb);
 		data.add(frameStart);
 		data.add(frameEnd);
-		ResultSet rs;
-		try {
-			rs = dbc.executeQuery("SELECT * FROM action WHERE playerReplayId=?"
-					+ " AND frame>=? AND frame<=? ORDER BY frame, actionid", data);
-			while (rs.next()) {
-				actions.add(new Action(rs));
-			}
-		} catch (SQLException e) {
-			LOGGER.log(Level.SEVERE, "Getting actions failed for player " + playerReplayIdDb, e);
-		}
-		return actions;
+		return dbc.streamQuery("SELECT * FROM action WHERE playerReplayId=?"
+				+ " AND frame>=? AND frame<=? ORDER BY frame, actionid", data, Action::new);
 	}
 	
 	/** Get list of events pretending to be actions! Hacky to avoid spamming clicks */
 	public List<ActionyEvent> getActionyEvents() {
 		DbConnection dbc = DbInterface.getInstance().getDbc();
-		List<ActionyEvent> events = new ArrayList<>();
-		List<Object> data = new ArrayList<>();
-		data.add(playerReplayIdDb);
-		ResultSet rs;
-		try {
-			rs = dbc.executeQuery("SELECT * FROM event"
-					+ " NATURAL JOIN playerreplay NATURAL JOIN unit"
-					+ " WHERE frame>0 AND (eventtypeid=12 OR eventtypeid=14)"
-					+ " AND playerreplayid=?"
-					+ " ORDER BY frame, eventid", data);
-			while (rs.next()) {
-				events.add(new ActionyEvent(rs));
-			}
-		} catch (SQLException e) {
+		try (Stream<ActionyEvent> events = dbc.streamQuery("SELECT * FROM event"
+				+ " NATURAL JOIN playerreplay NATURAL JOIN unit"
+				+ " WHERE frame>0 AND (eventtypeid=12 OR eventtypeid=14)"
+				+ " AND playerreplayid=?"
+				+ " ORDER BY frame, eventid", playerReplayIdDb, ActionyEvent::new)) {
+			return events.collect(Collectors.toList());
+		} catch (SQLException | UncheckedSQLException e) {
 			LOGGER.log(Level.SEVERE,
 					"Getting actiony events failed for player " + playerReplayIdDb, e);
 		}
-		return events;
+		return new ArrayList<>();
 	}
 	
 	/**
@@ -120,13 +119,19 @@ public class PlayerReplay {
 		// (and only once per research/upgrade)
 		Set<Integer> seenResearch = new HashSet<>();
 		Set<Integer> seenUpgrade = new HashSet<>();
-		List<Action> actions = getActions().stream()
-				.filter(a ->
-						(a.unitCommandType == UnitCommandTypes.Research
-								&& seenResearch.add(a.targetId))
-						|| (a.unitCommandType == UnitCommandTypes.Upgrade
-								&& seenUpgrade.add(a.targetId)))
-				.collect(Collectors.toList());
+		List<Action> actions;
+		try (Stream<Action> allActions = streamActions(0, Integer.MAX_VALUE)) {
+			actions = allActions
+					.filter(a ->
+							(a.unitCommandType == UnitCommandTypes.Research
+									&& seenResearch.add(a.targetId))
+							|| (a.unitCommandType == UnitCommandTypes.Upgrade
+									&& seenUpgrade.add(a.targetId)))
+					.collect(Collectors.toList());
+		} catch (SQLException | UncheckedSQLException e) {
+			LOGGER.log(Level.SEVERE, "Getting actions failed for player " + playerReplayIdDb, e);
+			actions = new ArrayList<>();
+		}
 		// merge based on frame
 		actions.addAll(getActionyEvents());
 		Collections.sort(actions, (a1, a2) -> a1.frame - a2.frame);
@@ -6,10 +6,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.xml.bind.annotation.XmlID;
 
 import util.DbConnection;
+import util.DbConnection.UncheckedSQLException;
 
 public class ScMap {
 	private static final Logger LOGGER = Logger.getLogger(ScMap.class.getName());
@@ -32,13 +34,11 @@ public class ScMap {
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		BuildTile[][] tiles = new BuildTile[xSize][ySize];
 		
-		try (ResultSet rs = dbc.executeQuery("SELECT * FROM buildTile WHERE mapId=?", dbMapId); ) {
-			while (rs.next()) {
-				int x = rs.getInt("BTilePosX");
-				int y = rs.getInt("BTilePosY");
-				tiles[x][y] = new BuildTile(rs);
-			}
-		} catch (SQLException e) {
+		// Streamed, as there can be tens of thousands of tiles
+		try (Stream<BuildTile> rows = dbc.streamQuery("SELECT * FROM buildTile WHERE mapId=?",
+				dbMapId, BuildTile::new)) {
+			rows.forEach(tile -> tiles[tile.x][tile.y] = tile);
+		} catch (SQLException | UncheckedSQLException e) {
 			LOGGER.log(Level.SEVERE, "Failed to get build tiles on map " + dbMapId, e);
 		}
 		return tiles;
@@ -0,0 +1,162 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * Collects rows for one table in a temporary tab-separated file, then sends them all with a
+ * single {@code LOAD DATA LOCAL INFILE}, which is much faster than (even batched) INSERTs for the
+ * large numbers of rows added when a replay is first extracted. Create with
+ * {@link DbConnection#bulkLoader}, which requires {@code db_bulk_load} to be enabled.
+ * <p>
+ * Rows which clash with an existing unique key are skipped. No ids are returned, so callers which
+ * need them must select them back (or not need them, eg. when nothing existed to clean up).
+ */
+public class BulkLoader implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(BulkLoader.class.getName());
+	
+	private final DbConnection dbc;
+	private final String table;
+	private final String columns;
+	private final File file;
+	private Writer out;
+	/** Whether the current row has any values yet (so whether the next one needs a tab) */
+	private boolean rowStarted = false;
+	/** Number of complete rows written since the last load */
+	private int numRows = 0;
+	
+	/**
+	 * @param table the table to load into
+	 * @param columns comma-separated list of the columns, in the order their values are put
+	 */
+	BulkLoader(DbConnection dbc, String table, String columns) throws SQLException {
+		this.dbc = dbc;
+		this.table = table;
+		this.columns = columns;
+		try {
+			file = File.createTempFile("bulk-" + table + "-", ".tsv");
+			file.deleteOnExit();
+			out = open();
+		} catch (IOException e) {
+			throw new SQLException("Couldn't create bulk load file for " + table, e);
+		}
+	}
+	
+	private Writer open() throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8));
+	}
+	
+	public BulkLoader put(long value) throws SQLException {
+		return putRaw(Long.toString(value));
+	}
+	
+	public BulkLoader put(boolean value) throws SQLException {
+		return putRaw(value ? "1" : "0");
+	}
+	
+	/** Add a NULL value, eg. to let the DB generate an auto-increment id */
+	public BulkLoader putNull() throws SQLException {
+		return putRaw("\\N");
+	}
+	
+	public BulkLoader put(String value) throws SQLException {
+		if (value == null) {
+			return putNull();
+		}
+		return putRaw(value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n"));
+	}
+	
+	private BulkLoader putRaw(String value) throws SQLException {
+		try {
+			if (rowStarted) {
+				out.write('\t');
+			}
+			out.write(value);
+		} catch (IOException e) {
+			throw new SQLException("Couldn't write bulk load file for " + table, e);
+		}
+		rowStarted = true;
+		return this;
+	}
+	
+	/** Finish the current row */
+	public void endRow() throws SQLException {
+		try {
+			out.write('\n');
+		} catch (IOException e) {
+			throw new SQLException("Couldn't write bulk load file for " + table, e);
+		}
+		rowStarted = false;
+		numRows++;
+	}
+	
+	/** Number of rows waiting to be loaded */
+	public int getNumRows() {
+		return numRows;
+	}
+	
+	/**
+	 * Send all rows written since the last load to the DB, in the connection's current
+	 * transaction (if any).
+	 *
+	 * @return the number of rows added (0 in debug mode)
+	 */
+	public long load() throws SQLException {
+		if (numRows == 0) {
+			return 0;
+		}
+		try {
+			out.close();
+			// Backslashes would be treated as escapes in the file name
+			String path = file.getAbsolutePath().replace('\\', '/').replace("'", "\\'");
+			long added = dbc.executeBulkLoad("LOAD DATA INTO " + table + " (" + columns + ")",
+					"LOAD DATA LOCAL INFILE '" + path + "' IGNORE INTO TABLE " + table
+							+ " CHARACTER SET utf8 FIELDS TERMINATED BY '\\t' "
+							+ "LINES TERMINATED BY '\\n' (" + columns + ")");
+			if (added < numRows) {
+				LOGGER.fine("Skipped " + (numRows - added) + " duplicate rows loading " + table);
+			}
+			return added;
+		} catch (IOException e) {
+			throw new SQLException("Couldn't write bulk load file for " + table, e);
+		} finally {
+			discard();
+		}
+	}
+	
+	/** Throw away all rows written since the last load */
+	public void discard() {
+		numRows = 0;
+		rowStarted = false;
+		try {
+			out.close();
+			out = open();
+		} catch (IOException e) {
+			LOGGER.warning("Couldn't reset bulk load file " + file + ": " + e.getMessage());
+		}
+	}
+	
+	/** Delete the file, throwing away any rows not yet loaded */
+	@Override
+	public void close() {
+		if (numRows > 0) {
+			LOGGER.warning("Discarding " + numRows + " rows not loaded into " + table);
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Nothing more can be done with it
+		}
+		if (!file.delete()) {
+			LOGGER.warning("Couldn't delete bulk load file " + file);
+		}
+	}
+}
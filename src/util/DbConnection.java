@@ -1,5 +1,6 @@
 package util;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -9,56 +10,292 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * A connection to the DB with a cache of prepared statements. Not thread-safe: each thread should
+ * use its own DbConnection, eg. borrowed from a {@link DbConnectionPool}.
+ */
 public class DbConnection implements AutoCloseable {
 	private static final Logger LOGGER = Logger.getLogger(DbConnection.class.getName());
-
+	
 	/** Properties file to load */
-	private static final String PROPERTIES_FILENAME = "databaseConfig.properties";
+	static final String PROPERTIES_FILENAME = "databaseConfig.properties";
+	/** Converts a (lower case) UPDATE query into a SELECT query */
+	private static final Pattern UPDATE_TO_SELECT =
+			Pattern.compile("update (.*) set (.*) where (.*)");
+	/** Splits a (lower case) INSERT query into the table, column list and values list */
+	private static final Pattern INSERT_PARTS =
+			Pattern.compile("insert into (.*) \\((.*)\\) values \\((.*)\\)");
+	/** Temporary table of ids used by {@link #findRemoveExtras} */
+	private static final String EXPECTED_IDS_TABLE = "expected_ids";
+	/** Number of rows per INSERT when filling {@link #EXPECTED_IDS_TABLE} */
+	private static final int EXPECTED_IDS_PER_INSERT = 1000;
+	/** Number of extras found by {@link #findRemoveExtras} to print to the log */
+	private static final int MAX_EXTRAS_TO_PRINT = 50;
 	/** Whether to prevent the program from performing changes to the DB (eg. insert, delete) */
 	private final boolean debugMode;
-
+	/** Number of rows to queue in a batch before it is automatically sent to the DB */
+	private final int batchSize;
+	/** Maximum number of rows in each statement sent by {@link #executeMultiInsert} */
+	private final int insertChunkSize;
+	/** Number of ids reserved at a time by an {@link IdAllocator} using this connection */
+	private final int idBlockSize;
+	/** Whether new rows may be sent with LOAD DATA. See {@link #bulkLoader} */
+	private final boolean bulkLoad;
+	
+	/** The DB to use by default. See {@link #useDatabase(String)} */
+	private final String dbName;
+	/** The DB currently in use */
+	private String currentDbName;
+	/** The pool to return this connection to when closed, or null if not pooled */
+	private final DbConnectionPool pool;
 	// Store most-recently used PreparedStatements to save on construction/garbage collection
 	private final MRU<String, PreparedStatement> mru = new MRU<>(200);
 	private Connection con = null;
 	private boolean connected = false;
-	private PreparedStatement getInsertId = null;
+	/** Batches of rows waiting to be inserted, by SQL template. See {@link #addBatch} */
+	private final Map<String, Batch> batches = new HashMap<>();
+	/** SELECT queries generated from INSERT/UPDATE queries to find existing rows, by query */
+	private final Map<String, String> findQueries = new HashMap<>();
+	/** Upsert queries generated from INSERT queries. See {@link #executeUpsert} */
+	private final Map<String, String> upsertQueries = new HashMap<>();
+	/** Multi-row queries generated from INSERT queries. See {@link #executeMultiInsert} */
+	private final Map<OnDuplicate, Map<String, MultiInsert>> multiInserts =
+			new EnumMap<>(OnDuplicate.class);
+	/** Ids of rows inserted or found through this connection */
+	private final IdCache idCache;
+	/** Time taken by each statement run through this connection */
+	private final SqlProfiler profiler;
+	/** The binder returned by {@link #stmt}, reused to avoid allocation */
+	private final Binder binder = new Binder();
+	/** Description of the open {@link #streamQuery} stream, or null if none */
+	private String openStream = null;
 	
 	public DbConnection() throws IOException, SQLException {
-		Properties props = Util.loadProperties(PROPERTIES_FILENAME);
+		this(Util.loadProperties(PROPERTIES_FILENAME), null);
+	}
+	
+	/** Create a connection from already-loaded properties, owned by the given pool (or null) */
+	DbConnection(Properties props, DbConnectionPool pool) throws SQLException {
+		this.pool = pool;
 		String dbUrl = Util.getPropertyNotNull(props, "db_url");
-		String dbName = Util.getPropertyNotNull(props, "db_name");
+		dbName = Util.getPropertyNotNull(props, "db_name");
 		String dbUser = Util.getPropertyNotNull(props, "db_user");
 		String dbPw = Util.getPropertyNotNull(props, "db_pw");
 		debugMode = Boolean.parseBoolean(Util.getPropertyNotNull(props, "db_debug_mode"));
+		batchSize = Integer.parseInt(Util.getPropertyNotNull(props, "db_batch_size"));
+		insertChunkSize = Integer.parseInt(Util.getPropertyNotNull(props, "db_insert_chunk_size"));
+		idBlockSize = Integer.parseInt(Util.getPropertyNotNull(props, "db_id_block_size"));
+		bulkLoad = Boolean.parseBoolean(Util.getPropertyNotNull(props, "db_bulk_load"));
+		idCache = new IdCache(
+				Integer.parseInt(Util.getPropertyNotNull(props, "db_id_cache_size")));
+		String profileCsv = Util.getPropertyNotNull(props, "db_profile_csv").trim();
+		profiler = new SqlProfiler(
+				Boolean.parseBoolean(Util.getPropertyNotNull(props, "db_profile")),
+				profileCsv.isEmpty() ? null : new File(profileCsv));
 		
-		if (debugMode) {
+		if (debugMode && pool == null) {
 			LOGGER.warning("DATABASE DEBUG MODE ACTIVE");
 		}
 		
-		con = DriverManager.getConnection(dbUrl, dbUser, dbPw);
+		Properties conProps = new Properties();
+		conProps.setProperty("user", dbUser);
+		conProps.setProperty("password", dbPw);
+		// Let the driver send each batch as a few multi-row INSERTs instead of row by row
+		conProps.setProperty("rewriteBatchedStatements", "true");
+		if (bulkLoad) {
+			// LOAD DATA LOCAL is refused by the driver unless allowed
+			conProps.setProperty("allowLoadLocalInfile", "true");
+		}
+		con = DriverManager.getConnection(dbUrl, conProps);
 		Statement st = con.createStatement();
 		// Switch to the chosen DB
 		st.executeUpdate("USE " + dbName);
+		currentDbName = dbName;
 		// Ensure UTF8 is used (so Korean characters are handled correctly)
 		st.executeUpdate("SET NAMES utf8");
 		st.close();
 		connected = true;
-		getInsertId = prepare("SELECT last_insert_id()", null);
-			
 	}
 	
 	public boolean isConnected() {
 		return connected;
 	}
 	
+	/** The DB this connection uses unless switched with {@link #useDatabase} ({@code db_name}) */
+	public String getDefaultDatabase() {
+		return dbName;
+	}
+	
+	/** Whether changes to the DB are prevented ({@code db_debug_mode}) */
+	public boolean isDebugMode() {
+		return debugMode;
+	}
+	
+	int getIdBlockSize() {
+		return idBlockSize;
+	}
+	
+	/**
+	 * The cache of ids used by {@link #executeInsert} (with findExisting) and
+	 * {@link #executeUpsert}, which can also be used directly for other lookups.
+	 */
+	public IdCache getIdCache() {
+		return idCache;
+	}
+	
+	/**
+	 * The timings of statements run through this connection. Dump them (eg. after each replay)
+	 * from the thread using the connection.
+	 */
+	public SqlProfiler getProfiler() {
+		return profiler;
+	}
+	
+	/** Whether {@code db_bulk_load} is enabled, so {@link #bulkLoader} can be used */
+	public boolean isBulkLoadEnabled() {
+		return bulkLoad;
+	}
+	
+	/**
+	 * Create a bulk loader for the given table, to add many new rows at once. Close it when
+	 * finished to delete its file.
+	 * 
+	 * @param columns comma-separated list of the columns, in the order their values are put
+	 * @throws SQLException if {@code db_bulk_load} is disabled, or the file can't be created
+	 */
+	public BulkLoader bulkLoader(String table, String columns) throws SQLException {
+		if (!bulkLoad) {
+			throw new SQLException("Bulk loading is disabled (db_bulk_load)");
+		}
+		return new BulkLoader(this, table, columns);
+	}
+	
+	/**
+	 * Execute a LOAD DATA statement for a {@link BulkLoader}, returning the number of rows
+	 * 
+	 * @param template the statement without the file name, to profile it under
+	 */
+	long executeBulkLoad(String template, String sql) throws SQLException {
+		if (!connected) {
+			LOGGER.warning("connection closed then used!");
+			throw new SQLException("Connection closed then used!");
+		}
+		LOGGER.finest(sql);
+		if (debugMode) {
+			LOGGER.finer("Debug mode: nothing loaded");
+			return 0;
+		}
+		try (Statement st = con.createStatement()) {
+			long start = profiler.start();
+			int rows = st.executeUpdate(sql);
+			profiler.record(template, start, rows);
+			return rows;
+		}
+	}
+	
+	/**
+	 * Switch this connection to a different DB (on the same server). Any queued batches are sent
+	 * to the previous DB first. Pooled connections are switched back to the default DB when
+	 * returned to the pool.
+	 */
+	public void useDatabase(String newDbName) throws SQLException {
+		if (newDbName.equals(currentDbName)) {
+			return;
+		}
+		for (Batch batch : batches.values()) {
+			batch.execute();
+		}
+		Statement st = con.createStatement();
+		st.executeUpdate("USE " + newDbName);
+		st.close();
+		currentDbName = newDbName;
+		// Cached ids belong to the previous DB
+		idCache.clear();
+		LOGGER.fine("Switched to DB " + newDbName);
+	}
+	
+	/** Get ready to be reused by another thread: send queued rows and switch to the default DB */
+	void resetForPool() throws SQLException {
+		if (openStream != null) {
+			throw new SQLException("Pooled connection returned with an open stream: " + openStream);
+		}
+		if (!con.getAutoCommit()) {
+			LOGGER.warning("Pooled connection returned in a transaction. Rolling back.");
+			rollback();
+		}
+		for (Batch batch : batches.values()) {
+			batch.execute();
+			batch.keys.clear();
+		}
+		useDatabase(dbName);
+	}
+	
+	/**
+	 * Start grouping changes into transactions instead of committing each statement separately.
+	 * Changes are then only committed by {@link #commit()} or {@link #endTransaction()}.
+	 */
+	public void beginTransaction() throws SQLException {
+		if (!connected) {
+			LOGGER.warning("connection closed then used!");
+			throw new SQLException("Connection closed then used!");
+		}
+		con.setAutoCommit(false);
+	}
+	
+	/**
+	 * Send any queued batches and commit all changes since the last commit. Later changes are
+	 * part of a new transaction.
+	 */
+	public void commit() throws SQLException {
+		for (Batch batch : batches.values()) {
+			batch.execute();
+		}
+		if (!con.getAutoCommit()) {
+			long start = profiler.start();
+			con.commit();
+			profiler.record("COMMIT", start, -1);
+			LOGGER.finer("Committed transaction");
+		}
+	}
+	
+	/** Commit and go back to committing each statement separately */
+	public void endTransaction() throws SQLException {
+		commit();
+		con.setAutoCommit(true);
+	}
+	
+	/**
+	 * Discard any queued batches and undo all changes since the last commit, then go back to
+	 * committing each statement separately.
+	 */
+	public void rollback() throws SQLException {
+		discardBatches();
+		// Ids inserted in the transaction are no longer valid
+		idCache.clear();
+		if (!con.getAutoCommit()) {
+			con.rollback();
+			con.setAutoCommit(true);
+			LOGGER.info("Rolled back transaction");
+		}
+	}
+	
 	public ResultSet executeQuery(String sql, Object data) throws SQLException {
 		List<Object> dataList = new ArrayList<>(1);
 		dataList.add(data);
@@ -67,18 +304,138 @@ public class DbConnection implements AutoCloseable {
 	
 	public ResultSet executeQuery(String sql, List<? extends Object> data) throws SQLException {
 		PreparedStatement ps = prepare(sql, data);
-		return ps.executeQuery();
+		long start = profiler.start();
+		ResultSet rs = ps.executeQuery();
+		// The caller reads the rows, so they can't be counted
+		profiler.record(sql, start, -1);
+		return rs;
+	}
+	
+	/** Reads a value from the current row of a ResultSet */
+	public interface RowMapper<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+	
+	/** Thrown by a {@link #streamQuery} stream when reading the next row fails */
+	public static class UncheckedSQLException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		public UncheckedSQLException(SQLException cause) {
+			super(cause);
+		}
+		
+		@Override
+		public synchronized SQLException getCause() {
+			return (SQLException) super.getCause();
+		}
+	}
+	
+	public <T> Stream<T> streamQuery(String sql, Object data, RowMapper<T> mapper)
+			throws SQLException {
+		List<Object> dataList = new ArrayList<>(1);
+		dataList.add(data);
+		return streamQuery(sql, dataList, mapper);
+	}
+	
+	/**
+	 * Execute a query whose rows are sent by the server as they are read, instead of all being
+	 * held in memory first as {@link #executeQuery} does. Use for queries which may return many
+	 * rows (eg. all of a player's actions or a map's build tiles), which can then be processed
+	 * without keeping them all.
+	 * <p>
+	 * The connection can't run any other statements until the stream is closed, so always close
+	 * it (eg. with try-with-resources), and the mapper and stream operations mustn't use the
+	 * connection. Errors reading rows are thrown as {@link UncheckedSQLException}.
+	 *
+	 * @param mapper converts each row into the stream's elements
+	 */
+	public <T> Stream<T> streamQuery(String sql, List<? extends Object> data, RowMapper<T> mapper)
+			throws SQLException {
+		if (!connected) {
+			LOGGER.warning("connection closed then used!");
+			throw new SQLException("Connection closed then used!");
+		}
+		checkNoStream();
+		// Forward-only, read-only with this fetch size tells Connector/J to stream the rows. Not
+		// cached, as the statement is busy until the stream is closed.
+		PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY);
+		ResultSet rs;
+		long start = profiler.start();
+		try {
+			ps.setFetchSize(Integer.MIN_VALUE);
+			bind(ps, data);
+			logStatement(sql, ps);
+			rs = ps.executeQuery();
+		} catch (SQLException e) {
+			ps.close();
+			throw e;
+		}
+		openStream = sql;
+		RowSpliterator<T> rows = new RowSpliterator<>(rs, mapper);
+		return StreamSupport.stream(rows, false).onClose(() -> {
+			openStream = null;
+			// Time includes reading (and processing) the rows, as they arrive as they are read
+			profiler.record("[stream] " + sql, start, rows.numRows);
+			try {
+				ps.close();
+			} catch (SQLException e) {
+				throw new UncheckedSQLException(e);
+			}
+		});
+	}
+	
+	/** Throw if a {@link #streamQuery} stream is still open, as the connection can't be used */
+	private void checkNoStream() throws SQLException {
+		if (openStream != null) {
+			throw new SQLException("Streaming query still open, close it first: " + openStream);
+		}
+	}
+	
+	/** Reads rows for {@link #streamQuery}, counting them for the profiler */
+	private static class RowSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+		private final ResultSet rs;
+		private final RowMapper<T> mapper;
+		private long numRows = 0;
+		
+		RowSpliterator(ResultSet rs, RowMapper<T> mapper) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED);
+			this.rs = rs;
+			this.mapper = mapper;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			try {
+				if (!rs.next()) {
+					return false;
+				}
+				numRows++;
+				action.accept(mapper.map(rs));
+				return true;
+			} catch (SQLException e) {
+				throw new UncheckedSQLException(e);
+			}
+		}
 	}
 	
 	/** Execute the query and return the value of the first column (usually the ID) as a long. */
 	public long queryFirstColumn(String sql, List<? extends Object> data) throws SQLException {
-		ResultSet rs = executeQuery(sql, data);
+		return queryFirstColumn(sql, prepare(sql, data));
+	}
+	
+	/** Execute an already bound query and return the value of the first column, or -1 */
+	private long queryFirstColumn(String sql, PreparedStatement ps) throws SQLException {
+		long start = profiler.start();
+		ResultSet rs = ps.executeQuery();
 		if (rs.next()) {
 			// Get the first column value. Better hope it's the ID!
 			long id = rs.getLong(1);
+			profiler.record(sql, start, 1);
 			LOGGER.finer("Found existing id " + id);
 			return id;
 		}
+		profiler.record(sql, start, 0);
 		return -1;
 	}
 	
@@ -94,10 +451,43 @@ public class DbConnection implements AutoCloseable {
 			LOGGER.finer("Debug mode: nothing deleted");
 			return;
 		}
-		ps.executeUpdate();
+		// Any of the cached ids may have been deleted
+		idCache.clear();
+		long start = profiler.start();
+		int rows = ps.executeUpdate();
+		profiler.record(sql, start, rows);
 	}
 	
 	/**
+	 * Execute an UPDATE (not in debug mode). Unlike
+	 * {@link #executeUpdate(String, List, boolean)}, the changed row's id isn't looked up, so use
+	 * this when the id is already known (eg. it's in the WHERE clause).
+	 * 
+	 * @param sql the sql query
+	 * @param data the items to update in the sql query in place of question marks
+	 * @return the number of rows matched (0 in debug mode)
+	 * @throws SQLException
+	 */
+	public int executeUpdate(String sql, List<? extends Object> data) throws SQLException {
+		return executeUpdate(sql, prepare(sql, data));
+	}
+	
+	/** Execute an already bound UPDATE statement and return the number of rows matched */
+	private int executeUpdate(String sql, PreparedStatement ps) throws SQLException {
+		if (debugMode) {
+			LOGGER.finer("Debug mode: nothing changed");
+			return 0;
+		}
+		long start = profiler.start();
+		int rows = ps.executeUpdate();
+		profiler.record(sql, start, rows);
+		return rows;
+	}
+	
+	/**
+	 * Execute an UPDATE and find the id of the changed row, which takes an extra query. See
+	 * {@link #executeUpdate(String, List)} for when the id is already known.
+	 * 
 	 * @param sql the sql query
 	 * @param data the items to update in the sql query in place of question marks
 	 * @param findExisting whether to first check if the data already exists before updating
@@ -107,9 +497,13 @@ public class DbConnection implements AutoCloseable {
 	public long executeUpdate(String sql, List<Object> data, boolean findExisting)
 			throws SQLException {
 		// Convert the UPDATE query into a SELECT query to find the ID
-		String select = sql.toLowerCase().replaceAll("update (.*) set (.*) where (.*)",
-				"SELECT * FROM $1 WHERE $2 AND $3");
-		select = select.replace(",", " AND ");
+		String select = findQueries.get(sql);
+		if (select == null) {
+			select = UPDATE_TO_SELECT.matcher(sql.toLowerCase())
+					.replaceAll("SELECT * FROM $1 WHERE $2 AND $3");
+			select = select.replace(",", " AND ");
+			findQueries.put(sql, select);
+		}
 		if (findExisting) {
 			try {
 				long firstCol = queryFirstColumn(select, data);
@@ -120,12 +514,11 @@ public class DbConnection implements AutoCloseable {
 				LOGGER.log(Level.WARNING, "Querying existing ID failed", e);
 			}
 		}
-		PreparedStatement ps = prepare(sql, data);
 		if (debugMode) {
 			LOGGER.finer("Debug mode: returned -1 as update ID");
 			return -1;
 		}
-		ps.executeUpdate();
+		executeUpdate(sql, data);
 		try {
 			return queryFirstColumn(select, data);
 		} catch (SQLException e) {
@@ -144,26 +537,14 @@ public class DbConnection implements AutoCloseable {
 	public long executeInsert(String sql, List<? extends Object> data, boolean findExisting)
 			throws SQLException {
 		if (findExisting) {
-			// Convert the INSERT query into a SELECT query
-			String query = sql.toLowerCase().replaceAll(
-					"insert into (.*) \\((.*)\\) values \\((.*)\\)",
-					"SELECT * FROM $1 WHERE <SPLIT>$2<SPLIT>$3");
-			// Merge the parts originally in brackets
-			String[] parts = query.split("<SPLIT>"); // Always 3 parts
-			String[] intoParts = parts[1].split(",");
-			String[] valuesParts = parts[2].split(",");
-			List<String> joinedParts = new ArrayList<>();
-			if (intoParts.length != valuesParts.length) {
-				throw new SQLException("Different numbers of items found");
-			}
-			for (int i = 0; i < intoParts.length; i++) {
-				joinedParts.add(intoParts[i].trim() + "=" + valuesParts[i].trim());
-			}
-			query = parts[0] + Util.join(" AND ", joinedParts);
-			
+			long cachedId = idCache.get(sql, data.toArray());
+			if (cachedId != -1) {
+				return cachedId;
+			}
 			try {
-				long firstCol = queryFirstColumn(query, data);
+				long firstCol = queryFirstColumn(getInsertFindQuery(sql), data);
 				if (firstCol != -1) {
+					idCache.put(firstCol, sql, data.toArray());
 					return firstCol;
 				}
 			} catch (SQLException e) {
@@ -171,62 +552,434 @@ public class DbConnection implements AutoCloseable {
 			}
 		}
 		PreparedStatement ps = prepare(sql, data);
+		long id = executeInsert(sql, ps);
+		if (findExisting) {
+			idCache.put(id, sql, data.toArray());
+		}
+		return id;
+	}
+	
+	/** Execute an already bound INSERT statement and return the insert id */
+	private long executeInsert(String sql, PreparedStatement ps) throws SQLException {
 		if (debugMode) {
 			LOGGER.finer("Debug mode: returned -1 as insert ID");
 			return -1;
 		}
-		ps.executeUpdate();
-		ResultSet rs = getInsertId.executeQuery();
-		if (rs.next()) {
-			try {
-				long id = rs.getLong(1);
-				LOGGER.finer("Got new id " + id);
-				return id;
-			} catch (SQLException e) {
-				LOGGER.log(Level.WARNING, "Getting insert ID failed", e);
+		long start = profiler.start();
+		int rows = ps.executeUpdate();
+		profiler.record(sql, start, rows);
+		long id = getFirstKey(ps);
+		LOGGER.finer("Got new id " + id);
+		return id;
+	}
+	
+	/**
+	 * Insert any number of rows with one statement (eg. with several rows in its VALUES list) and
+	 * return all their ids.
+	 * 
+	 * @param sql the sql query
+	 * @param data the items to insert in the sql query in place of question marks
+	 * @return the insert ids, in the order of the rows in the query (empty in debug mode)
+	 * @throws SQLException
+	 */
+	public List<Long> executeInsertAll(String sql, List<? extends Object> data)
+			throws SQLException {
+		PreparedStatement ps = prepare(sql, data);
+		List<Long> keys = new ArrayList<>();
+		if (debugMode) {
+			LOGGER.finer("Debug mode: returned no insert IDs");
+			return keys;
+		}
+		long start = profiler.start();
+		int rows = ps.executeUpdate();
+		profiler.record(sql, start, rows);
+		try (ResultSet rs = ps.getGeneratedKeys()) {
+			while (rs.next()) {
+				keys.add(rs.getLong(1));
+			}
+		}
+		return keys;
+	}
+	
+	/**
+	 * Get the first id generated by the statement just executed, which must have been prepared
+	 * with {@link Statement#RETURN_GENERATED_KEYS} (see {@link #getStatement}). The driver gets
+	 * it from the server's reply to the statement, so this needs no extra query.
+	 * 
+	 * @return the id, or -1 if there was none
+	 */
+	private static long getFirstKey(PreparedStatement ps) throws SQLException {
+		try (ResultSet rs = ps.getGeneratedKeys()) {
+			if (rs.next()) {
+				return rs.getLong(1);
 			}
 		}
 		return -1;
 	}
 	
+	/**
+	 * Insert a row, or if it clashes with an existing row on a unique key, update that row to the
+	 * given values instead. This is done with a single statement, so is much faster than
+	 * {@link #executeInsert(String, List, boolean)} with findExisting. If exactly the same values
+	 * were upserted before, the cached id is returned without going to the DB at all.
+	 * 
+	 * @param sql an INSERT query of the form "INSERT INTO table (columns) VALUES (values)" on a
+	 *        table with a unique key on the identifying columns
+	 * @param data the items to insert in the sql query in place of question marks
+	 * @param idColumn the table's AUTO_INCREMENT primary key column
+	 * @return id of the inserted or existing row
+	 * @throws SQLException
+	 */
+	public long executeUpsert(String sql, List<? extends Object> data, String idColumn)
+			throws SQLException {
+		Object[] key = data.toArray();
+		long id = idCache.get(sql, key);
+		if (id != -1) {
+			return id;
+		}
+		if (debugMode) {
+			LOGGER.finer("Debug mode: returned existing ID (or -1) as upsert ID");
+			id = queryFirstColumn(getInsertFindQuery(sql), data);
+		} else {
+			String upsert = getUpsertQuery(sql, idColumn);
+			id = executeUpsert(upsert, prepare(upsert, data));
+		}
+		idCache.put(id, sql, key);
+		return id;
+	}
+	
+	/** Execute an already bound upsert statement and return the row's id */
+	private long executeUpsert(String sql, PreparedStatement ps) throws SQLException {
+		long start = profiler.start();
+		int rows = ps.executeUpdate();
+		profiler.record(sql, start, rows);
+		// LAST_INSERT_ID(idColumn) in the update clause makes the reply (and so the generated
+		// key) contain the existing row's id too
+		long id = getFirstKey(ps);
+		LOGGER.finer("Got upsert id " + id);
+		return id;
+	}
+	
+	/** Get the upsert query for the INSERT query. See {@link #executeUpsert} */
+	private String getUpsertQuery(String sql, String idColumn) throws SQLException {
+		String upsert = upsertQueries.get(sql);
+		if (upsert == null) {
+			upsert = insertToUpsert(sql, idColumn);
+			upsertQueries.put(sql, upsert);
+		}
+		return upsert;
+	}
+	
+	/** Get the SELECT query for rows matching all the values inserted by the INSERT query */
+	private String getInsertFindQuery(String sql) throws SQLException {
+		String query = findQueries.get(sql);
+		if (query == null) {
+			query = insertToSelect(sql);
+			findQueries.put(sql, query);
+		}
+		return query;
+	}
+	
+	/** Convert an INSERT query into a SELECT query for rows matching all the inserted values */
+	private static String insertToSelect(String sql) throws SQLException {
+		String query = INSERT_PARTS.matcher(sql.toLowerCase())
+				.replaceAll("SELECT * FROM $1 WHERE <SPLIT>$2<SPLIT>$3");
+		// Merge the parts originally in brackets
+		String[] parts = query.split("<SPLIT>"); // Always 3 parts
+		String[] intoParts = parts[1].split(",");
+		String[] valuesParts = parts[2].split(",");
+		List<String> joinedParts = new ArrayList<>();
+		if (intoParts.length != valuesParts.length) {
+			throw new SQLException("Different numbers of items found");
+		}
+		for (int i = 0; i < intoParts.length; i++) {
+			joinedParts.add(intoParts[i].trim() + "=" + valuesParts[i].trim());
+		}
+		return parts[0] + Util.join(" AND ", joinedParts);
+	}
+	
+	/**
+	 * Convert an INSERT query into an INSERT ... ON DUPLICATE KEY UPDATE query which sets all the
+	 * inserted columns and returns the existing row's id as the generated key
+	 */
+	private static String insertToUpsert(String sql, String idColumn) throws SQLException {
+		Matcher m = INSERT_PARTS.matcher(sql.toLowerCase());
+		if (!m.matches()) {
+			throw new SQLException("Can't convert to upsert: " + sql);
+		}
+		List<String> updateParts = new ArrayList<>();
+		updateParts.add(idColumn + "=LAST_INSERT_ID(" + idColumn + ")");
+		for (String column : m.group(2).split(",")) {
+			column = column.trim();
+			updateParts.add(column + "=VALUES(" + column + ")");
+		}
+		return sql + " ON DUPLICATE KEY UPDATE " + Util.join(", ", updateParts);
+	}
+	
+	/** What a multi-row INSERT does with rows which clash with an existing row on a unique key */
+	public enum OnDuplicate {
+		/** Fail, as a normal INSERT does */
+		ERROR,
+		/** Skip the row (INSERT IGNORE) */
+		IGNORE,
+		/** Update the existing row to the row's values (ON DUPLICATE KEY UPDATE) */
+		UPDATE
+	}
+	
+	/**
+	 * Insert many rows with multi-row INSERTs of up to {@code db_insert_chunk_size} rows each
+	 * ({@code INSERT ... VALUES (..), (..), ...}). Unlike {@link #addBatch}, rows are sent
+	 * straight away, and can be skipped or update existing rows, but their ids are not returned.
+	 * Rows which don't fill a chunk are sent in chunks of a power of two rows, so only the full
+	 * chunk size and a few powers of two are ever prepared per query, rather than one statement
+	 * for every number of rows left over.
+	 * 
+	 * @param sql a single-row query of the form "INSERT INTO table (columns) VALUES (values)"
+	 * @param values the values of all the rows, one row after another
+	 * @param onDuplicate what to do with rows which clash with existing rows on a unique key
+	 * @return the number of rows affected, as reported by MySQL (0 in debug mode)
+	 * @throws SQLException
+	 */
+	public int executeMultiInsert(String sql, List<? extends Object> values,
+			OnDuplicate onDuplicate) throws SQLException {
+		Map<String, MultiInsert> queries = multiInserts.get(onDuplicate);
+		if (queries == null) {
+			queries = new HashMap<>();
+			multiInserts.put(onDuplicate, queries);
+		}
+		MultiInsert multiInsert = queries.get(sql);
+		if (multiInsert == null) {
+			multiInsert = new MultiInsert(sql, onDuplicate);
+			queries.put(sql, multiInsert);
+		}
+		if (values.size() % multiInsert.width != 0) {
+			throw new SQLException(values.size() + " values don't make whole rows of "
+					+ multiInsert.width + " for: " + sql);
+		}
+		int numRows = values.size() / multiInsert.width;
+		int rowsAffected = 0;
+		int chunkRows;
+		for (int first = 0; first < numRows; first += chunkRows) {
+			chunkRows = multiInsert.chunkRows(numRows - first, insertChunkSize);
+			String query = multiInsert.getQuery(chunkRows);
+			PreparedStatement ps = prepare(query, values.subList(first * multiInsert.width,
+					(first + chunkRows) * multiInsert.width));
+			if (debugMode) {
+				LOGGER.finer("Debug mode: nothing inserted");
+				continue;
+			}
+			long start = profiler.start();
+			int rows = ps.executeUpdate();
+			profiler.record(multiInsert.profileName, start, rows);
+			rowsAffected += rows;
+		}
+		return rowsAffected;
+	}
+	
+	/**
+	 * Queue a row to be inserted with the given INSERT query. Rows are sent to the DB in one round
+	 * trip per batch: automatically once {@code db_batch_size} rows are queued for the query, or
+	 * when {@link #flushBatch(String)} is called. Unlike {@link #executeInsert}, this never checks
+	 * for existing rows, so should only be used for rows known not to be in the DB yet.
+	 * 
+	 * @param sql the sql query
+	 * @param data the items to insert in the sql query in place of question marks
+	 * @throws SQLException
+	 */
+	public void addBatch(String sql, List<? extends Object> data) throws SQLException {
+		Batch batch = batches.get(sql);
+		if (batch == null) {
+			batch = new Batch(sql);
+			batches.put(sql, batch);
+		}
+		batch.add(data);
+	}
+	
+	/**
+	 * Send any rows still queued for the given INSERT query to the DB.
+	 * 
+	 * @return the insert ids of all rows added since the last flush of this query (including any
+	 *         sent automatically), in the order they were added. Ids will be -1 in debug mode.
+	 * @throws SQLException
+	 */
+	public List<Long> flushBatch(String sql) throws SQLException {
+		Batch batch = batches.get(sql);
+		if (batch == null) {
+			return new ArrayList<>();
+		}
+		batch.execute();
+		List<Long> keys = new ArrayList<>(batch.keys);
+		batch.keys.clear();
+		return keys;
+	}
+	
+	/** Throw away all queued rows (and unretrieved insert ids), eg. after an error */
+	public void discardBatches() {
+		for (Batch batch : batches.values()) {
+			if (batch.numQueued > 0) {
+				LOGGER.warning("Discarding " + batch.numQueued + " queued rows for: " + batch.sql);
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Start binding parameters to the cached statement for the query, eg.
+	 * {@code dbc.stmt(sql).setLong(id).setInt(frame).executeQuery()}. This avoids building a list
+	 * of boxed values for each call. The returned binder is reused by the next call to
+	 * {@link #stmt}, {@link #batch} or {@link #upsert}, so must be finished with first.
+	 */
+	public Binder stmt(String sql) throws SQLException {
+		if (!connected) {
+			LOGGER.warning("connection closed then used!");
+			throw new SQLException("Connection closed then used!");
+		}
+		return binder.start(sql, getStatement(sql), null);
+	}
+	
+	/** Like {@link #stmt}, but finished with {@link Binder#addBatch()}. See {@link #addBatch} */
+	public Binder batch(String sql) throws SQLException {
+		Batch batch = batches.get(sql);
+		if (batch == null) {
+			batch = new Batch(sql);
+			batches.put(sql, batch);
+		}
+		return binder.start(sql, batch.ps, batch);
+	}
+	
+	/**
+	 * Like {@link #stmt}, but finished with {@link Binder#executeUpsert()}. See
+	 * {@link #executeUpsert}
+	 */
+	public Binder upsert(String sql, String idColumn) throws SQLException {
+		if (debugMode) {
+			// The find query has the same parameters, so can be bound in the same way
+			return stmt(getInsertFindQuery(sql));
+		}
+		return stmt(getUpsertQuery(sql, idColumn));
+	}
+	
 	/**
 	 * Find and report extra (unexpected) values found in a specific table and column, for a
-	 * specific condition.
+	 * specific condition. The expected values are loaded into a temporary table so the extras can
+	 * be counted and removed with a single anti-join query each, however many there are.
 	 * 
+	 * @param condition a condition on the table's columns, with one question mark for
+	 *        conditionValue
 	 * @param maxNumToRemove the maximum number of unexpected values to remove. If there are more
 	 * than this amount, will display a warning instead.
 	 */
 	public void findRemoveExtras(String column, String table, String condition, long conditionValue,
 			Set<Long> expectedValues, int maxNumToRemove) throws SQLException {
+		findRemoveExtras(column, table, condition, conditionValue, expectedValues, null,
+				maxNumToRemove);
+	}
+	
+	/**
+	 * Find and report extra (unexpected) values found in a specific table and column, for a
+	 * specific condition, as if {@link #findRemoveExtras(String, String, String, long, Set, int)}
+	 * were called once for each value of groupColumn: the extras of a group are only removed if
+	 * there are no more than maxNumToRemove of them, so a group with too many extras doesn't stop
+	 * the extras of the other groups being removed.
+	 * 
+	 * @param condition a condition on the table's columns, with one question mark for
+	 *        conditionValue
+	 * @param groupColumn the column of the table to apply maxNumToRemove to each value of, or null
+	 *        to apply it to all the extras together
+	 * @param maxNumToRemove the maximum number of unexpected values to remove from each group. If
+	 *        a group has more than this amount, will display a warning instead.
+	 */
+	public void findRemoveExtras(String column, String table, String condition, long conditionValue,
+			Set<Long> expectedValues, String groupColumn, int maxNumToRemove)
+			throws SQLException {
+		loadExpectedIds(expectedValues);
+		String extras = table + " LEFT JOIN " + EXPECTED_IDS_TABLE + " ON " + table + "." + column
+				+ "=" + EXPECTED_IDS_TABLE + ".expected_id WHERE (" + condition + ") AND "
+				+ EXPECTED_IDS_TABLE + ".expected_id IS NULL";
 		List<Object> data = new ArrayList<>();
 		data.add(conditionValue);
-		ResultSet rs = executeQuery("SELECT " + column + " FROM " + table +
-				" WHERE " + condition, data);
-		List<Long> extraValues = new ArrayList<>();
+		String countByGroup = groupColumn == null ? "SELECT 0, COUNT(*) FROM " + extras
+				: "SELECT " + table + "." + groupColumn + ", COUNT(*) FROM " + extras
+						+ " GROUP BY " + table + "." + groupColumn;
+		ResultSet rs = executeQuery(countByGroup, data);
+		long numExtras = 0;
+		long numToRemove = 0;
+		List<Long> tooManyGroups = new ArrayList<>();
 		while (rs.next()) {
-			long value = rs.getLong(column);
-			if (!expectedValues.contains(value)) {
-				extraValues.add(value);
+			long numInGroup = rs.getLong(2);
+			numExtras += numInGroup;
+			if (numInGroup > maxNumToRemove) {
+				tooManyGroups.add(rs.getLong(1));
+				LOGGER.warning("Found " + numInGroup + " extras in " + table
+						+ (groupColumn == null ? "" : " for " + groupColumn + " " + rs.getLong(1))
+						+ ". Too many! Not removed!");
+			} else {
+				numToRemove += numInGroup;
 			}
 		}
-		if (extraValues.size() > 0) {
+		if (numExtras > 0) {
 			// Print only some of the extra values because there may be a lot.
-			int i = extraValues.size() > 50 ? 50 : extraValues.size();
-			if (extraValues.size() > maxNumToRemove) {
-				LOGGER.warning("Found " + extraValues.size() + " extras in " + table 
-						+ ". Too many! Not removed!");
-			} else {
-				LOGGER.info("Removing " + extraValues.size() + " extras from " + table);
-				for (Long id : extraValues) {
-					data.clear();
-					data.add(id);
-					executeDelete("DELETE FROM " + table + " WHERE " + column + "=?", data);
+			List<Long> someExtras = new ArrayList<>();
+			rs = executeQuery("SELECT " + table + "." + column + " FROM " + extras
+					+ " LIMIT " + MAX_EXTRAS_TO_PRINT, data);
+			while (rs.next()) {
+				someExtras.add(rs.getLong(1));
+			}
+			if (numToRemove > 0) {
+				LOGGER.info("Removing " + numToRemove + " extras from " + table);
+				// Group values are numbers so can safely be put straight into the query text
+				String delete = "DELETE " + table + " FROM " + extras;
+				if (!tooManyGroups.isEmpty()) {
+					delete += " AND " + table + "." + groupColumn + " NOT IN ("
+							+ Util.join(tooManyGroups) + ")";
 				}
+				executeDelete(delete, data);
+				LOGGER.fine(idCache.toString());
 			}
-			LOGGER.info("First " + i + " extras: " + Util.join(extraValues.subList(0, i)));
+			LOGGER.info("First " + someExtras.size() + " extras: " + Util.join(someExtras));
 		}
 	}
-
+	
+	/** Replace the contents of the temporary expected ids table with the given ids */
+	private void loadExpectedIds(Set<Long> ids) throws SQLException {
+		if (!connected) {
+			LOGGER.warning("connection closed then used!");
+			throw new SQLException("Connection closed then used!");
+		}
+		// Temporary tables are only visible to this connection, so this is allowed in debug mode
+		try (Statement st = con.createStatement()) {
+			long start = profiler.start();
+			st.executeUpdate("CREATE TEMPORARY TABLE IF NOT EXISTS " + EXPECTED_IDS_TABLE
+					+ " (expected_id BIGINT NOT NULL PRIMARY KEY)");
+			// Not TRUNCATE, which would commit any open transaction
+			st.executeUpdate("DELETE FROM " + EXPECTED_IDS_TABLE);
+			// The ids are numbers so can safely be put straight into the query text, many rows
+			// at a time
+			StringBuilder insert = new StringBuilder();
+			int numInInsert = 0;
+			for (Long id : ids) {
+				if (numInInsert == 0) {
+					insert.append("INSERT IGNORE INTO " + EXPECTED_IDS_TABLE + " VALUES ");
+				} else {
+					insert.append(',');
+				}
+				insert.append('(').append(id).append(')');
+				numInInsert++;
+				if (numInInsert == EXPECTED_IDS_PER_INSERT) {
+					st.executeUpdate(insert.toString());
+					insert.setLength(0);
+					numInInsert = 0;
+				}
+			}
+			if (numInInsert > 0) {
+				st.executeUpdate(insert.toString());
+			}
+			profiler.record("INSERT IGNORE INTO " + EXPECTED_IDS_TABLE + " VALUES ...", start,
+					ids.size());
+		}
+		LOGGER.finer("Loaded " + ids.size() + " expected ids");
+	}
+	
 	/** Note: Do NOT close these manually, they will be closed automatically. */
 	private PreparedStatement prepare(String sql, List<? extends Object> data)
 			throws SQLException {
@@ -234,15 +987,47 @@ public class DbConnection implements AutoCloseable {
 			LOGGER.warning("connection closed then used!");
 			throw new SQLException("Connection closed then used!");
 		}
+		PreparedStatement ps = getStatement(sql);
+		bind(ps, data);
+		logStatement(sql, ps);
+		return ps;
+	}
+	
+	/** Get the cached prepared statement for the query, preparing it if needed */
+	private PreparedStatement getStatement(String sql) throws SQLException {
+		checkNoStream();
 		PreparedStatement ps;
 		if (mru.containsKey(sql)) {
 			LOGGER.finest("Getting prepared statement from mru");
 			ps = mru.get(sql);
+		} else if (sql.regionMatches(true, 0, "INSERT", 0, 6)) {
+			// Ids of inserted rows can then be read from the reply without another query
+			ps = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+			LOGGER.finest("Storing prepared statement in mru");
+			mru.put(sql, ps);
 		} else {
 			ps = con.prepareStatement(sql);
 			LOGGER.finest("Storing prepared statement in mru");
 			mru.put(sql, ps);
 		}
+		return ps;
+	}
+	
+	private static void logStatement(String sql, PreparedStatement ps) {
+		if (sql.startsWith("SELECT")) {
+			// Avoid converting the statement to a string if not going to be logged anyway
+			if (LOGGER.isLoggable(Level.FINER)) {
+				LOGGER.finer("Statement: " + ps.toString());
+			}
+		} else {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Statement: " + ps.toString());
+			}
+		}
+	}
+	
+	/** Set the parameters of the statement to the given data, in order */
+	private void bind(PreparedStatement ps, List<? extends Object> data) throws SQLException {
 		ps.clearParameters();
 		if (data != null) {
 			for (int i = 0; i < data.size(); i++) {
@@ -267,21 +1052,36 @@ public class DbConnection implements AutoCloseable {
 				}
 			}
 		}
-		if (sql.startsWith("SELECT")) {
-			// Avoid converting the statement to a string if not going to be logged anyway
-			if (LOGGER.isLoggable(Level.FINER)) {
-				LOGGER.finer("Statement: " + ps.toString());
-			}
-		} else {
-			if (LOGGER.isLoggable(Level.FINE)) {
-				LOGGER.fine("Statement: " + ps.toString());
-			}
-		}
-		return ps;
 	}
 	
+	/** Close the connection, or if it came from a pool, return it to the pool instead. */
 	@Override
 	public void close() {
+		if (pool != null) {
+			pool.release(this);
+		} else {
+			closeConnection();
+		}
+	}
+	
+	/** Send any queued rows, commit any open transaction and close the underlying connection */
+	void closeConnection() {
+		LOGGER.info(idCache.toString());
+		profiler.dumpTotal();
+		for (Batch batch : batches.values()) {
+			try {
+				batch.execute();
+			} catch (SQLException e) {
+				LOGGER.log(Level.WARNING, "Failed to insert queued rows for: " + batch.sql, e);
+			}
+		}
+		try {
+			if (con != null && !con.getAutoCommit()) {
+				con.commit();
+			}
+		} catch (SQLException e) {
+			LOGGER.log(Level.WARNING, "Failed to commit transaction while closing", e);
+		}
 		try {
 			if (con != null) {
 				con.close();
@@ -293,6 +1093,266 @@ public class DbConnection implements AutoCloseable {
 		connected = false;
 	}
 	
+	/**
+	 * Binds parameters directly to a cached prepared statement, in order, then executes it. Get one
+	 * from {@link DbConnection#stmt}, {@link DbConnection#batch} or {@link DbConnection#upsert}.
+	 */
+	public final class Binder {
+		private String sql;
+		private PreparedStatement ps;
+		/** Set when binding a row for a batch */
+		private Batch batch;
+		/** Index of the next parameter to set */
+		private int index;
+		
+		private Binder() {
+		}
+		
+		private Binder start(String sql, PreparedStatement ps, Batch batch) throws SQLException {
+			this.sql = sql;
+			this.ps = ps;
+			this.batch = batch;
+			index = 1;
+			ps.clearParameters();
+			return this;
+		}
+		
+		public Binder setInt(int value) throws SQLException {
+			ps.setInt(index++, value);
+			return this;
+		}
+		
+		public Binder setLong(long value) throws SQLException {
+			ps.setLong(index++, value);
+			return this;
+		}
+		
+		public Binder setBoolean(boolean value) throws SQLException {
+			ps.setBoolean(index++, value);
+			return this;
+		}
+		
+		public Binder setDouble(double value) throws SQLException {
+			ps.setDouble(index++, value);
+			return this;
+		}
+		
+		public Binder setString(String value) throws SQLException {
+			ps.setString(index++, value);
+			return this;
+		}
+		
+		/** Set a nullable id: null if the value is null, otherwise the long value */
+		public Binder setLongOrNull(Long value) throws SQLException {
+			if (value == null) {
+				ps.setNull(index++, Types.BIGINT);
+			} else {
+				ps.setLong(index++, value);
+			}
+			return this;
+		}
+		
+		public ResultSet executeQuery() throws SQLException {
+			logStatement(sql, ps);
+			long start = profiler.start();
+			ResultSet rs = ps.executeQuery();
+			profiler.record(sql, start, -1);
+			return rs;
+		}
+		
+		/** Execute the query and return the value of the first column as a long, or -1 */
+		public long queryFirstColumn() throws SQLException {
+			logStatement(sql, ps);
+			return DbConnection.this.queryFirstColumn(sql, ps);
+		}
+		
+		/**
+		 * Execute an UPDATE (not in debug mode). For a DELETE, use
+		 * {@link DbConnection#executeDelete} so cached ids are cleared.
+		 * 
+		 * @return the number of rows matched (0 in debug mode)
+		 */
+		public int executeUpdate() throws SQLException {
+			logStatement(sql, ps);
+			return DbConnection.this.executeUpdate(sql, ps);
+		}
+		
+		/** Execute an INSERT and return the insert id (-1 in debug mode) */
+		public long executeInsert() throws SQLException {
+			logStatement(sql, ps);
+			return DbConnection.this.executeInsert(sql, ps);
+		}
+		
+		/** Execute the upsert and return the row's id. See {@link DbConnection#executeUpsert} */
+		public long executeUpsert() throws SQLException {
+			if (debugMode) {
+				LOGGER.finer("Debug mode: returned existing ID (or -1) as upsert ID");
+				return queryFirstColumn();
+			}
+			logStatement(sql, ps);
+			return DbConnection.this.executeUpsert(sql, ps);
+		}
+		
+		/** Queue the row to be inserted. See {@link DbConnection#addBatch} */
+		public void addBatch() throws SQLException {
+			if (batch == null) {
+				throw new SQLException("Not a batch statement: " + sql);
+			}
+			batch.added();
+		}
+	}
+	
+	/** The multi-row versions of one INSERT query. See {@link #executeMultiInsert} */
+	private static class MultiInsert {
+		/** "INSERT [IGNORE] INTO table (columns) VALUES " */
+		private final String prefix;
+		/** The values of one row, eg. "(?, ?)" */
+		private final String row;
+		/** "" or " ON DUPLICATE KEY UPDATE ..." */
+		private final String suffix;
+		/** Number of parameters in each row */
+		private final int width;
+		/**
+		 * The query for each number of rows, built as needed: only the chunk size and powers of
+		 * two smaller than it, so this stays small
+		 */
+		private final Map<Integer, String> queries = new HashMap<>();
+		/** Name to profile the queries under, whatever their number of rows */
+		private final String profileName;
+		
+		public MultiInsert(String sql, OnDuplicate onDuplicate) throws SQLException {
+			Matcher m = INSERT_PARTS.matcher(sql.toLowerCase());
+			int valuesIndex = sql.toLowerCase().lastIndexOf(" values ");
+			if (!m.matches() || valuesIndex == -1) {
+				throw new SQLException("Can't convert to multi-row insert: " + sql);
+			}
+			String start = sql.substring(0, valuesIndex).trim();
+			if (onDuplicate == OnDuplicate.IGNORE) {
+				start = "INSERT IGNORE" + start.substring("insert".length());
+			}
+			prefix = start + " VALUES ";
+			row = sql.substring(valuesIndex + " values ".length()).trim();
+			int numParams = 0;
+			for (int i = 0; i < row.length(); i++) {
+				if (row.charAt(i) == '?') {
+					numParams++;
+				}
+			}
+			width = numParams;
+			if (onDuplicate == OnDuplicate.UPDATE) {
+				List<String> updateParts = new ArrayList<>();
+				for (String column : m.group(2).split(",")) {
+					column = column.trim();
+					updateParts.add(column + "=VALUES(" + column + ")");
+				}
+				suffix = " ON DUPLICATE KEY UPDATE " + Util.join(", ", updateParts);
+			} else {
+				suffix = "";
+			}
+			profileName = "[multi-row] " + prefix + row + suffix;
+		}
+		
+		/**
+		 * @return the number of rows to send in the next INSERT: a full chunk if there are enough
+		 *         rows left, or else the largest power of two which fits
+		 */
+		public int chunkRows(int rowsLeft, int chunkSize) {
+			if (rowsLeft >= chunkSize) {
+				return chunkSize;
+			}
+			return Integer.highestOneBit(rowsLeft);
+		}
+		
+		public String getQuery(int numRows) {
+			String query = queries.get(numRows);
+			if (query == null) {
+				StringBuilder sb = new StringBuilder(prefix);
+				for (int i = 0; i < numRows; i++) {
+					if (i > 0) {
+						sb.append(", ");
+					}
+					sb.append(row);
+				}
+				query = sb.append(suffix).toString();
+				queries.put(numRows, query);
+			}
+			return query;
+		}
+	}
+	
+	/** Rows queued for insertion with one SQL template, sent to the DB as a JDBC batch. */
+	private class Batch {
+		private final String sql;
+		private final PreparedStatement ps;
+		/** Number of rows added to the statement since it was last executed */
+		private int numQueued = 0;
+		/** Insert ids of the rows executed so far, in the order they were added */
+		private final List<Long> keys = new ArrayList<>();
+		
+		public Batch(String sql) throws SQLException {
+			if (!connected) {
+				LOGGER.warning("connection closed then used!");
+				throw new SQLException("Connection closed then used!");
+			}
+			this.sql = sql;
+			ps = con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		}
+		
+		public void add(List<? extends Object> data) throws SQLException {
+			bind(ps, data);
+			added();
+		}
+		
+		/** Add the row currently bound to the statement */
+		public void added() throws SQLException {
+			ps.addBatch();
+			numQueued++;
+			if (numQueued >= batchSize) {
+				execute();
+			}
+		}
+		
+		/** Send the queued rows to the DB and store their insert ids */
+		public void execute() throws SQLException {
+			if (numQueued == 0) {
+				return;
+			}
+			if (debugMode) {
+				LOGGER.finer("Debug mode: returned -1 as batch insert IDs");
+				for (int i = 0; i < numQueued; i++) {
+					keys.add(-1L);
+				}
+				ps.clearBatch();
+				numQueued = 0;
+				return;
+			}
+			LOGGER.fine("Executing batch of " + numQueued + " rows: " + sql);
+			try {
+				long start = profiler.start();
+				ps.executeBatch();
+				try (ResultSet rs = ps.getGeneratedKeys()) {
+					while (rs.next()) {
+						keys.add(rs.getLong(1));
+					}
+				}
+				profiler.record("[batch] " + sql, start, numQueued);
+			} finally {
+				ps.clearBatch();
+				numQueued = 0;
+			}
+		}
+		
+		public void clear() {
+			try {
+				ps.clearBatch();
+			} catch (SQLException e) {
+				LOGGER.log(Level.WARNING, "Failed to clear batch", e);
+			}
+			numQueued = 0;
+			keys.clear();
+		}
+	}
+	
 	private static class MRU<K, V extends AutoCloseable> extends LinkedHashMap<K, V> {
 		private static final long serialVersionUID = 1L;
 		private static final float DEFAULT_LOAD_FACTOR = 0.75f;
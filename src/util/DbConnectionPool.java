@@ -0,0 +1,183 @@
+package util;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed-size pool of {@link DbConnection}s, so that several threads can each use their own
+ * MySQL connection (with its own prepared statement cache) at the same time. Connections are
+ * opened as they are first needed, up to {@code db_pool_size}.
+ * <p>
+ * A borrowed connection must only be used by the thread that borrowed it. Closing it returns it to
+ * the pool (after sending any queued rows) rather than closing the underlying connection.
+ */
+public class DbConnectionPool implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(DbConnectionPool.class.getName());
+	
+	private final Properties props;
+	/** Maximum number of connections to open */
+	private final int size;
+	/** Connections not currently borrowed */
+	private final BlockingQueue<DbConnection> idle;
+	/** All connections opened so far */
+	private final List<DbConnection> all = new ArrayList<>();
+	/** Number of connections opened or being opened */
+	private int numOpened = 0;
+	private boolean closed = false;
+	/** Connection bound to each thread by {@link #getForThread()} */
+	private final ThreadLocal<DbConnection> threadConnection = new ThreadLocal<>();
+	
+	/** Create a pool of size {@code db_pool_size} */
+	public DbConnectionPool() throws IOException {
+		this(Util.loadProperties(DbConnection.PROPERTIES_FILENAME));
+	}
+	
+	private DbConnectionPool(Properties props) {
+		this(props, Integer.parseInt(Util.getPropertyNotNull(props, "db_pool_size")));
+	}
+	
+	/** Create a pool of the given size, ignoring {@code db_pool_size} */
+	public DbConnectionPool(int size) throws IOException {
+		this(Util.loadProperties(DbConnection.PROPERTIES_FILENAME), size);
+	}
+	
+	private DbConnectionPool(Properties props, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1, was " + size);
+		}
+		this.props = props;
+		this.size = size;
+		idle = new ArrayBlockingQueue<>(size);
+		if (Boolean.parseBoolean(Util.getPropertyNotNull(props, "db_debug_mode"))) {
+			LOGGER.warning("DATABASE DEBUG MODE ACTIVE");
+		}
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * Borrow a connection for the current thread, waiting for one to be returned if all are in
+	 * use. Close the connection (eg. with try-with-resources) to return it.
+	 */
+	public DbConnection borrow() throws SQLException {
+		while (true) {
+			boolean openNew = false;
+			synchronized (this) {
+				if (closed) {
+					throw new SQLException("Connection pool closed then used!");
+				}
+				DbConnection dbc = idle.poll();
+				if (dbc != null) {
+					return dbc;
+				}
+				if (numOpened < size) {
+					numOpened++;
+					openNew = true;
+				}
+			}
+			
+			if (openNew) {
+				// Connect outside the lock so other threads can borrow meanwhile
+				DbConnection dbc = null;
+				try {
+					dbc = new DbConnection(props, this);
+				} finally {
+					synchronized (this) {
+						if (dbc == null) {
+							numOpened--;
+						} else {
+							all.add(dbc);
+						}
+					}
+				}
+				LOGGER.fine("Opened pooled connection " + all.size() + " of " + size);
+				return dbc;
+			}
+			
+			// Wait for a connection to be returned. Recheck every so often in case a returned
+			// connection was closed instead, freeing up space to open a new one.
+			try {
+				DbConnection dbc = idle.poll(1, TimeUnit.SECONDS);
+				if (dbc != null) {
+					return dbc;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a DB connection", e);
+			}
+		}
+	}
+	
+	/**
+	 * Get the connection bound to the current thread, borrowing one the first time this is called
+	 * from the thread. It stays bound until {@link #releaseForThread()} is called, so threads
+	 * which use this should call that when they finish with the DB.
+	 */
+	public DbConnection getForThread() throws SQLException {
+		DbConnection dbc = threadConnection.get();
+		if (dbc == null) {
+			dbc = borrow();
+			threadConnection.set(dbc);
+		}
+		return dbc;
+	}
+	
+	/** Return the current thread's connection (if any) to the pool */
+	public void releaseForThread() {
+		DbConnection dbc = threadConnection.get();
+		if (dbc != null) {
+			threadConnection.remove();
+			dbc.close();
+		}
+	}
+	
+	/** Called by {@link DbConnection#close()} for pooled connections */
+	void release(DbConnection dbc) {
+		synchronized (this) {
+			if (closed) {
+				dbc.closeConnection();
+				return;
+			}
+		}
+		try {
+			dbc.resetForPool();
+		} catch (SQLException e) {
+			// Don't hand on a connection in an unknown state. Open a new one next time instead.
+			LOGGER.log(Level.WARNING, "Problem resetting pooled connection, closing it", e);
+			dbc.discardBatches();
+			dbc.closeConnection();
+			synchronized (this) {
+				all.remove(dbc);
+				numOpened--;
+			}
+			return;
+		}
+		idle.offer(dbc);
+	}
+	
+	/** Close all connections. Any connections still borrowed are closed when they are returned. */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		int numIdle = 0;
+		DbConnection dbc;
+		while ((dbc = idle.poll()) != null) {
+			dbc.closeConnection();
+			numIdle++;
+		}
+		if (numIdle < all.size()) {
+			LOGGER.fine("Closed pool with " + (all.size() - numIdle) + " connections borrowed");
+		}
+		all.clear();
+	}
+}
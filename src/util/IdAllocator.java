@@ -0,0 +1,124 @@
+package util;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Hands out ids for new rows without asking the DB for each one (hi/lo allocation): blocks of
+ * {@code db_id_block_size} ids are reserved from the {@code id_sequence} table in one round trip,
+ * then assigned here. Rows can then be written with their ids (eg. a unit group and the actions
+ * which refer to it) in the same batch or bulk load, without fetching generated keys.
+ * <p>
+ * Reservations are committed straight away, so several extractors (or threads, as this is
+ * thread-safe) can allocate ids for the same table without waiting for each other's transactions.
+ * Ids reserved but not used (eg. by a rolled back transaction) are just skipped.
+ * <p>
+ * Every row added to a table allocated from must get its id from here, and the table's id column
+ * must not be AUTO_INCREMENT. A row inserted with a NULL id would otherwise take the table's next
+ * auto-increment id, which may be one reserved here but not yet used, so a later insert with that
+ * id would fail with a duplicate key. Without AUTO_INCREMENT, such an insert fails straight away
+ * instead. Nor can rows be inserted with ids chosen some other way, as each table's sequence
+ * is only started once, from the highest id then in the table. A table whose id column is still
+ * AUTO_INCREMENT (eg. in a DB created by an older starcraft.sql) is refused; change it with eg.
+ * {@code ALTER TABLE action MODIFY ActionID bigint(20) NOT NULL}.
+ */
+public class IdAllocator implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(IdAllocator.class.getName());
+	
+	private final DbConnection dbc;
+	private final int blockSize;
+	/** The unused ids reserved for each table */
+	private final Map<String, Block> blocks = new HashMap<>();
+	
+	/**
+	 * @param dbc the connection to reserve ids with. It is used only by this allocator, without
+	 *        transactions, and closed with it.
+	 */
+	public IdAllocator(DbConnection dbc) {
+		this.dbc = dbc;
+		blockSize = dbc.getIdBlockSize();
+	}
+	
+	/**
+	 * Get an unused id for a new row in the table.
+	 *
+	 * @param idColumn the table's id column, used to start the table's sequence after any ids
+	 *        already in the table
+	 */
+	public synchronized long next(String table, String idColumn) throws SQLException {
+		Block block = blocks.get(table);
+		if (block == null) {
+			block = new Block();
+			blocks.put(table, block);
+			startSequence(table, idColumn);
+		}
+		if (block.next >= block.end) {
+			reserve(table, idColumn, block);
+		}
+		return block.next++;
+	}
+	
+	/**
+	 * Add the table's sequence, starting after the table's highest id, if it doesn't exist
+	 *
+	 * @throws SQLException if the table's id column is AUTO_INCREMENT
+	 */
+	private void startSequence(String table, String idColumn) throws SQLException {
+		long autoIncrement = dbc.stmt("SELECT COUNT(*) FROM information_schema.COLUMNS WHERE " +
+				"TABLE_SCHEMA=DATABASE() AND TABLE_NAME=? AND COLUMN_NAME=? AND " +
+				"EXTRA LIKE '%auto_increment%'")
+				.setString(table)
+				.setString(idColumn)
+				.queryFirstColumn();
+		if (autoIncrement > 0) {
+			throw new SQLException(table + "." + idColumn + " is AUTO_INCREMENT, so its ids " +
+					"could clash with those allocated. Remove AUTO_INCREMENT from it first.");
+		}
+		dbc.stmt("INSERT IGNORE INTO id_sequence (TableName, NextID) SELECT ?, COALESCE(MAX("
+				+ idColumn + "), 0) + 1 FROM " + table)
+				.setString(table)
+				.executeUpdate();
+	}
+	
+	/** Reserve the next block of ids for the table */
+	private void reserve(String table, String idColumn, Block block) throws SQLException {
+		if (dbc.isDebugMode()) {
+			// Nothing can be reserved, but nothing will be inserted either
+			long sequenceNext = dbc.stmt("SELECT NextID FROM id_sequence WHERE TableName=?")
+					.setString(table)
+					.queryFirstColumn();
+			long tableNext = dbc.stmt("SELECT COALESCE(MAX(" + idColumn + "), 0) + 1 FROM "
+					+ table).queryFirstColumn();
+			block.next = Math.max(sequenceNext, tableNext);
+			block.end = Long.MAX_VALUE;
+			return;
+		}
+		// LAST_INSERT_ID(expr) makes the new value available to this connection only
+		int rows = dbc.stmt("UPDATE id_sequence SET NextID=LAST_INSERT_ID(NextID + ?) " +
+				"WHERE TableName=?")
+				.setInt(blockSize)
+				.setString(table)
+				.executeUpdate();
+		if (rows != 1) {
+			throw new SQLException("No id_sequence row for " + table);
+		}
+		block.end = dbc.stmt("SELECT LAST_INSERT_ID()").queryFirstColumn();
+		block.next = block.end - blockSize;
+		LOGGER.fine("Reserved " + table + " ids " + block.next + " to " + (block.end - 1));
+	}
+	
+	@Override
+	public synchronized void close() {
+		dbc.close();
+	}
+	
+	/** A range of reserved ids */
+	private static class Block {
+		/** The next id to hand out */
+		private long next = 0;
+		/** The id after the last one reserved */
+		private long end = 0;
+	}
+}
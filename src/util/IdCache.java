@@ -0,0 +1,119 @@
+package util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of DB ids by table and natural key (eg. unit ids by PlayerReplayID and
+ * UnitReplayID), so ids which have already been inserted or found don't need to be looked up in
+ * the DB again. Once full, the least recently used ids are evicted. Hits and misses are counted so
+ * the size ({@code db_id_cache_size}) can be tuned.
+ * <p>
+ * The cache only knows about changes made through its own {@link DbConnection}, which clears it
+ * whenever rows may have been deleted.
+ */
+public class IdCache {
+	private final LruMap ids;
+	private long hits = 0;
+	private long misses = 0;
+	
+	public IdCache(int maxEntries) {
+		ids = new LruMap(maxEntries);
+	}
+	
+	/**
+	 * @param table the table (or any other namespace) the key belongs to
+	 * @param naturalKey the values identifying the row
+	 * @return the cached id, or -1 if not cached
+	 */
+	public long get(String table, Object... naturalKey) {
+		Long id = ids.get(new Key(table, naturalKey));
+		if (id == null) {
+			misses++;
+			return -1;
+		}
+		hits++;
+		return id;
+	}
+	
+	/** Cache the id for the row identified by the table and natural key. Ignores -1 ids. */
+	public void put(long id, String table, Object... naturalKey) {
+		if (id == -1) {
+			return;
+		}
+		ids.put(new Key(table, naturalKey), id);
+	}
+	
+	public void clear() {
+		if (!ids.isEmpty()) {
+			ids.clear();
+		}
+	}
+	
+	public long getHits() {
+		return hits;
+	}
+	
+	public long getMisses() {
+		return misses;
+	}
+	
+	public int size() {
+		return ids.size();
+	}
+	
+	@Override
+	public String toString() {
+		long total = hits + misses;
+		return String.format("IdCache: %d hits, %d misses (%.1f%% hit rate), %d of %d entries",
+				hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, ids.size(), ids.maxEntries);
+	}
+	
+	private static final class Key {
+		private final String table;
+		private final Object[] naturalKey;
+		private final int hash;
+		
+		public Key(String table, Object[] naturalKey) {
+			this.table = table;
+			this.naturalKey = naturalKey;
+			hash = 31 * table.hashCode() + Arrays.hashCode(naturalKey);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && table.equals(other.table)
+					&& Arrays.equals(naturalKey, other.naturalKey);
+		}
+	}
+	
+	private static class LruMap extends LinkedHashMap<Key, Long> {
+		private static final long serialVersionUID = 1L;
+		private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+		private final int maxEntries;
+		
+		public LruMap(int maxEntries) {
+			// Don't allocate a huge table up front: it grows as entries are added
+			super(16, DEFAULT_LOAD_FACTOR, true);
+			this.maxEntries = maxEntries;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+			return size() > maxEntries;
+		}
+	}
+}
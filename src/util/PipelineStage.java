@@ -0,0 +1,223 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One stage of a pipeline: a number of threads which take items from the stage's bounded input
+ * queue, process them, and put the results on the next stage's queue. As the queues are bounded,
+ * stages ahead of the slowest one wait for it instead of piling up items in memory, while the
+ * others keep working alongside it.
+ * <p>
+ * Each stage records how many items it has processed and how its threads' time is split between
+ * working, waiting for input and waiting for space in the next stage's queue, so the slowest
+ * stage is the one whose threads are always busy. See {@link #getStats()}.
+ * <p>
+ * Feed the first stage with {@link #put}, then call {@link #finishInput()}. Each stage finishes
+ * the next stage's input once all of its own threads have finished.
+ * <p>
+ * An item whose task throws is logged, counted as failed and not passed on. If the stage has a
+ * {@link FailureHandler}, it is also passed the item, eg. to record the failure.
+ *
+ * @param <I> the type of items taken by this stage
+ * @param <O> the type of items passed to the next stage
+ */
+public class PipelineStage<I, O> {
+	private static final Logger LOGGER = Logger.getLogger(PipelineStage.class.getName());
+	private static final double NANOS_PER_SECOND = 1000000000.0;
+	/** How often threads waiting for input check whether the input has finished */
+	private static final long POLL_MILLIS = 100;
+	
+	/** Processes one item in a stage */
+	public interface Task<I, O> {
+		/** @return the item to pass to the next stage, or null to pass on nothing */
+		O process(I item) throws Exception;
+	}
+	
+	/** Records an item whose task failed */
+	public interface FailureHandler<I> {
+		void failed(I item) throws Exception;
+	}
+	
+	private final String name;
+	private final Task<I, O> task;
+	/** Called with each item whose task failed, or null if none */
+	private final FailureHandler<I> failureHandler;
+	/** The stage to pass results to, or null if this is the last stage */
+	private final PipelineStage<O, ?> next;
+	/** Items waiting to be processed */
+	private final BlockingQueue<I> queue;
+	private final int queueSize;
+	/** Whether no more items will be added to the queue */
+	private volatile boolean inputFinished = false;
+	private final List<Thread> threads = new ArrayList<>();
+	/** Number of threads which haven't finished yet */
+	private final AtomicInteger numRunning = new AtomicInteger();
+	
+	private final AtomicLong numProcessed = new AtomicLong();
+	private final AtomicLong numFailed = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private final AtomicLong inputWaitNanos = new AtomicLong();
+	private final AtomicLong outputWaitNanos = new AtomicLong();
+	private volatile long startNanos = 0;
+	private volatile long endNanos = 0;
+	
+	/**
+	 * @param name used in thread names, the log and stats
+	 * @param numThreads number of items to process at once
+	 * @param queueSize maximum number of items waiting to be processed
+	 * @param next the stage to pass results to, or null if this is the last stage
+	 */
+	public PipelineStage(String name, int numThreads, int queueSize, Task<I, O> task,
+			PipelineStage<O, ?> next) {
+		this(name, numThreads, queueSize, task, null, next);
+	}
+	
+	/**
+	 * @param failureHandler called with each item whose task failed, on the thread which
+	 *        processed it
+	 * @see #PipelineStage(String, int, int, Task, PipelineStage)
+	 */
+	public PipelineStage(String name, int numThreads, int queueSize, Task<I, O> task,
+			FailureHandler<I> failureHandler, PipelineStage<O, ?> next) {
+		if (numThreads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("Stage " + name + " needs at least 1 thread and "
+					+ "queue space, had " + numThreads + " and " + queueSize);
+		}
+		this.name = name;
+		this.task = task;
+		this.failureHandler = failureHandler;
+		this.next = next;
+		this.queueSize = queueSize;
+		queue = new ArrayBlockingQueue<>(queueSize);
+		for (int i = 0; i < numThreads; i++) {
+			threads.add(new Thread(this::run, name + "-" + (i + 1)));
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	/** Start this stage's threads */
+	public void start() {
+		startNanos = System.nanoTime();
+		numRunning.set(threads.size());
+		for (Thread thread : threads) {
+			thread.start();
+		}
+	}
+	
+	/** Add an item to be processed, waiting while the queue is full */
+	public void put(I item) throws InterruptedException {
+		queue.put(item);
+	}
+	
+	/** Tell the stage no more items will be added. Its threads finish once the queue is empty. */
+	public void finishInput() {
+		inputFinished = true;
+	}
+	
+	/** Wait for this stage's threads to finish */
+	public void awaitDone() throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+	
+	public boolean isRunning() {
+		return numRunning.get() > 0;
+	}
+	
+	private void run() {
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				// Check the flag before polling, so an empty poll after it was set means the
+				// queue is really finished
+				boolean finished = inputFinished;
+				I item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				long taken = System.nanoTime();
+				inputWaitNanos.addAndGet(taken - start);
+				if (item == null) {
+					if (finished) {
+						break;
+					}
+					continue;
+				}
+				O result = null;
+				try {
+					result = task.process(item);
+					numProcessed.incrementAndGet();
+				} catch (Exception e) {
+					numFailed.incrementAndGet();
+					LOGGER.log(Level.SEVERE, name + " failed for " + item + ": " + e.getMessage(),
+							e);
+					recordFailure(item);
+				}
+				long processed = System.nanoTime();
+				busyNanos.addAndGet(processed - taken);
+				if (result != null && next != null) {
+					next.put(result);
+					outputWaitNanos.addAndGet(System.nanoTime() - processed);
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.warning(Thread.currentThread().getName() + " interrupted");
+			Thread.currentThread().interrupt();
+		} finally {
+			if (numRunning.decrementAndGet() == 0) {
+				endNanos = System.nanoTime();
+				finishNext();
+			}
+		}
+	}
+	
+	private void recordFailure(I item) {
+		if (failureHandler == null) {
+			return;
+		}
+		try {
+			failureHandler.failed(item);
+		} catch (Exception e) {
+			LOGGER.log(Level.SEVERE, name + " couldn't record the failure of " + item + ": "
+					+ e.getMessage(), e);
+		}
+	}
+	
+	/** Called by the last thread to finish, so the next stage's threads can finish too */
+	private void finishNext() {
+		if (next != null) {
+			next.finishInput();
+		}
+	}
+	
+	/**
+	 * @return one line describing the stage's progress: items processed and the rate since
+	 *         starting, items queued, and the share of its threads' time spent busy, waiting for
+	 *         input and waiting for the next stage
+	 */
+	public String getStats() {
+		long end = endNanos != 0 ? endNanos : System.nanoTime();
+		double seconds = startNanos == 0 ? 0 : (end - startNanos) / NANOS_PER_SECOND;
+		double threadSeconds = seconds * threads.size();
+		long processed = numProcessed.get();
+		return String.format("%-10s %2d threads: %6d done (%7.2f/s), %4d failed, queue %3d/%-3d,"
+				+ " busy %3.0f%%, waiting for input %3.0f%%, waiting for next stage %3.0f%%",
+				name, threads.size(), processed, seconds > 0 ? processed / seconds : 0,
+				numFailed.get(), queue.size(), queueSize, percent(busyNanos.get(), threadSeconds),
+				percent(inputWaitNanos.get(), threadSeconds),
+				percent(outputWaitNanos.get(), threadSeconds));
+	}
+	
+	private static double percent(long nanos, double totalSeconds) {
+		return totalSeconds > 0 ? 100 * nanos / NANOS_PER_SECOND / totalSeconds : 0;
+	}
+}
@@ -0,0 +1,217 @@
+package util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Records the number of calls, time taken and rows returned/affected for each SQL template (the
+ * query text before parameters are bound) run by a {@link DbConnection}, so the statements which
+ * dominate the run time can be found. Times go in power-of-two buckets, so percentiles are only
+ * accurate to within a factor of two but recording is just a few additions.
+ * <p>
+ * {@link #dump(String)} logs the statements since the last dump (eg. for one replay), slowest in
+ * total first, and adds them to the totals logged by {@link #dumpTotal()}. Both are also appended
+ * to the CSV file {@code db_profile_csv}, if set. Enabled by {@code db_profile}.
+ * <p>
+ * Not thread-safe: each connection has its own.
+ */
+public class SqlProfiler {
+	private static final Logger LOGGER = Logger.getLogger(SqlProfiler.class.getName());
+	private static final double NANOS_PER_MS = 1000000.0;
+	private static final String CSV_HEADER = "label,sql,calls,total_ms,mean_ms,p50_ms,p95_ms,"
+			+ "p99_ms,max_ms,rows";
+	/** Guards the CSV file, which may be shared by several connections */
+	private static final Object CSV_LOCK = new Object();
+	
+	private final boolean enabled;
+	/** CSV file to append dumps to, or null for none */
+	private final File csvFile;
+	/** Stats since the last dump, by SQL template */
+	private final Map<String, Stats> interval = new HashMap<>();
+	/** Stats up to the last dump, by SQL template */
+	private final Map<String, Stats> total = new HashMap<>();
+	
+	/**
+	 * @param enabled whether to record anything
+	 * @param csvFile file to append dumps to, or null for none
+	 */
+	public SqlProfiler(boolean enabled, File csvFile) {
+		this.enabled = enabled;
+		this.csvFile = csvFile;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/** @return the start time to pass to {@link #record}, or 0 if disabled */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Record a call of the SQL template which started at the given time.
+	 *
+	 * @param rows the number of rows returned or affected, or -1 if not known (eg. a ResultSet
+	 *        returned to the caller unread)
+	 */
+	public void record(String sql, long startNanos, long rows) {
+		if (!enabled) {
+			return;
+		}
+		long nanos = System.nanoTime() - startNanos;
+		Stats stats = interval.get(sql);
+		if (stats == null) {
+			stats = new Stats();
+			interval.put(sql, stats);
+		}
+		stats.add(nanos, rows);
+	}
+	
+	/** Log (and write to the CSV) the stats since the last dump, and add them to the totals */
+	public void dump(String label) {
+		if (!enabled || interval.isEmpty()) {
+			return;
+		}
+		write(label, interval);
+		for (Map.Entry<String, Stats> entry : interval.entrySet()) {
+			Stats stats = total.get(entry.getKey());
+			if (stats == null) {
+				stats = new Stats();
+				total.put(entry.getKey(), stats);
+			}
+			stats.add(entry.getValue());
+		}
+		interval.clear();
+	}
+	
+	/** Dump any stats since the last dump, then log (and write to the CSV) the totals */
+	public void dumpTotal() {
+		dump("since last dump");
+		if (!enabled || total.isEmpty()) {
+			return;
+		}
+		write("total", total);
+	}
+	
+	private void write(String label, Map<String, Stats> statsBySql) {
+		List<Map.Entry<String, Stats>> entries = new ArrayList<>(statsBySql.entrySet());
+		// Slowest in total first
+		Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+			@Override
+			public int compare(Map.Entry<String, Stats> a, Map.Entry<String, Stats> b) {
+				return Long.compare(b.getValue().totalNanos, a.getValue().totalNanos);
+			}
+		});
+		long totalNanos = 0;
+		long calls = 0;
+		for (Map.Entry<String, Stats> entry : entries) {
+			totalNanos += entry.getValue().totalNanos;
+			calls += entry.getValue().calls;
+		}
+		StringBuilder sb = new StringBuilder(String.format(
+				"SQL profile (%s): %d calls, %.1f ms%n", label, calls, totalNanos / NANOS_PER_MS));
+		sb.append(String.format("%10s %8s %8s %8s %8s %8s %8s %9s  %s%n", "total ms", "calls",
+				"mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms", "rows", "sql"));
+		for (Map.Entry<String, Stats> entry : entries) {
+			Stats s = entry.getValue();
+			sb.append(String.format("%10.1f %8d %8.3f %8.3f %8.3f %8.3f %8.3f %9s  %s%n",
+					s.totalNanos / NANOS_PER_MS, s.calls, s.totalNanos / NANOS_PER_MS / s.calls,
+					s.percentile(0.5) / NANOS_PER_MS, s.percentile(0.95) / NANOS_PER_MS,
+					s.percentile(0.99) / NANOS_PER_MS, s.maxNanos / NANOS_PER_MS,
+					s.rowsKnown ? Long.toString(s.rows) : "?", entry.getKey()));
+		}
+		LOGGER.info(sb.toString());
+		if (csvFile != null) {
+			writeCsv(label, entries);
+		}
+	}
+	
+	private void writeCsv(String label, List<Map.Entry<String, Stats>> entries) {
+		synchronized (CSV_LOCK) {
+			boolean isNew = !csvFile.exists();
+			try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(csvFile, true), StandardCharsets.UTF_8))) {
+				if (isNew) {
+					out.println(CSV_HEADER);
+				}
+				for (Map.Entry<String, Stats> entry : entries) {
+					Stats s = entry.getValue();
+					out.println(csvQuote(label) + "," + csvQuote(entry.getKey()) + "," + s.calls
+							+ "," + s.totalNanos / NANOS_PER_MS
+							+ "," + s.totalNanos / NANOS_PER_MS / s.calls
+							+ "," + s.percentile(0.5) / NANOS_PER_MS
+							+ "," + s.percentile(0.95) / NANOS_PER_MS
+							+ "," + s.percentile(0.99) / NANOS_PER_MS
+							+ "," + s.maxNanos / NANOS_PER_MS
+							+ "," + (s.rowsKnown ? Long.toString(s.rows) : ""));
+				}
+			} catch (IOException e) {
+				LOGGER.warning("Couldn't write SQL profile to " + csvFile + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	private static String csvQuote(String value) {
+		return "\"" + value.replace("\"", "\"\"").replace('\n', ' ') + "\"";
+	}
+	
+	/** Counters for one SQL template */
+	private static class Stats {
+		/** Calls by time taken: bucket i holds times t where 2^(i-1) <= t < 2^i nanoseconds */
+		private final long[] buckets = new long[64];
+		private long calls = 0;
+		private long totalNanos = 0;
+		private long maxNanos = 0;
+		private long rows = 0;
+		/** Whether the number of rows was known for any calls */
+		private boolean rowsKnown = false;
+		
+		void add(long nanos, long numRows) {
+			buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0))]++;
+			calls++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			if (numRows >= 0) {
+				rows += numRows;
+				rowsKnown = true;
+			}
+		}
+		
+		void add(Stats other) {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] += other.buckets[i];
+			}
+			calls += other.calls;
+			totalNanos += other.totalNanos;
+			maxNanos = Math.max(maxNanos, other.maxNanos);
+			rows += other.rows;
+			rowsKnown |= other.rowsKnown;
+		}
+		
+		/** @return the upper bound of the bucket containing the percentile, in nanoseconds */
+		long percentile(double fraction) {
+			long target = (long) Math.ceil(fraction * calls);
+			long count = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				count += buckets[i];
+				if (count >= target) {
+					// Don't report more than the slowest call
+					return Math.min(i == 63 ? Long.MAX_VALUE : 1L << i, maxNanos);
+				}
+			}
+			return maxNanos;
+		}
+	}
+}
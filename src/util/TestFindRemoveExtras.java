@@ -0,0 +1,56 @@
+package util;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that findRemoveExtras with a group column applies its limit to each group on its own:
+ * a group with a few extras has them removed even when another group has too many to remove.
+ * Uses the DB in extractorConfig.properties, in a temporary table only this test can see.
+ */
+public class TestFindRemoveExtras {
+	private static final String TABLE = "test_find_remove_extras";
+	private static final int MAX_NUM_TO_REMOVE = 3;
+	
+	public static void main(String[] args) throws Exception {
+		List<Long> remaining = new ArrayList<>();
+		try (DbConnectionPool pool = new DbConnectionPool(1);
+				DbConnection dbc = pool.borrow()) {
+			List<Object> data = new ArrayList<>();
+			dbc.executeUpdate("CREATE TEMPORARY TABLE " + TABLE + " (rowId BIGINT NOT NULL " +
+					"PRIMARY KEY, groupId BIGINT NOT NULL, replayId BIGINT NOT NULL)", data);
+			// Group 1: rows 1-2 expected, 3-4 extra. Group 2: row 5 expected, 6-10 extra.
+			// Group 3 (another replay): row 11 extra, but not in the condition.
+			long[][] rows = { { 1, 1 }, { 2, 1 }, { 3, 1 }, { 4, 1 }, { 5, 2 }, { 6, 2 }, { 7, 2 },
+					{ 8, 2 }, { 9, 2 }, { 10, 2 } };
+			for (long[] row : rows) {
+				dbc.executeUpdate("INSERT INTO " + TABLE + " VALUES (?, ?, 1)",
+						Arrays.asList(row[0], row[1]));
+			}
+			dbc.executeUpdate("INSERT INTO " + TABLE + " VALUES (11, 3, 2)", data);
+			
+			Set<Long> expected = new HashSet<>(Arrays.asList(1L, 2L, 5L));
+			dbc.findRemoveExtras("rowId", TABLE, "replayId=?", 1, expected, "groupId",
+					MAX_NUM_TO_REMOVE);
+			
+			ResultSet rs = dbc.executeQuery("SELECT rowId FROM " + TABLE + " ORDER BY rowId",
+					data);
+			while (rs.next()) {
+				remaining.add(rs.getLong(1));
+			}
+			dbc.executeUpdate("DROP TEMPORARY TABLE " + TABLE, data);
+		}
+		List<Long> expectedRemaining = Arrays.asList(1L, 2L, 5L, 6L, 7L, 8L, 9L, 10L, 11L);
+		if (remaining.equals(expectedRemaining)) {
+			System.out.println("PASSED: only the extras of the group with few extras were removed");
+		} else {
+			System.out.println("FAILED: expected rows " + expectedRemaining + " to remain, but "
+					+ remaining + " did");
+			System.exit(1);
+		}
+	}
+}
@@ -29,7 +29,7 @@ SET time_zone = "+00:00";
 --
 
 CREATE TABLE IF NOT EXISTS `action` (
-  `ActionID` bigint(20) NOT NULL AUTO_INCREMENT,
+  `ActionID` bigint(20) NOT NULL COMMENT 'Allocated by IdAllocator: not AUTO_INCREMENT, so only ids it reserves are used',
   `PlayerReplayID` int(11) NOT NULL,
   `Frame` int(11) NOT NULL,
   `UnitCommandTypeID` smallint(6) NOT NULL COMMENT 'Exactly one of UnitCommandTypeId and OrderTypeId will be set to None.',
@@ -45,7 +45,7 @@ CREATE TABLE IF NOT EXISTS `action` (
   KEY `UnitCommandTypeID` (`UnitCommandTypeID`),
   KEY `OrderTypeID` (`OrderTypeID`),
   KEY `UnitGroupID` (`UnitGroupID`)
-) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=0 ;
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
 
 -- --------------------------------------------------------
 
@@ -54,7 +54,7 @@ CREATE TABLE IF NOT EXISTS `action` (
 --
 
 CREATE TABLE IF NOT EXISTS `attributechange` (
-  `AttributeChangeID` bigint(20) NOT NULL AUTO_INCREMENT,
+  `AttributeChangeID` bigint(20) NOT NULL COMMENT 'Allocated by IdAllocator: not AUTO_INCREMENT, so only ids it reserves are used',
   `UnitID` bigint(20) NOT NULL,
   `AttributeTypeID` smallint(6) NOT NULL,
   `ChangeVal` int(11) NOT NULL,
@@ -62,7 +62,7 @@ CREATE TABLE IF NOT EXISTS `attributechange` (
   PRIMARY KEY (`AttributeChangeID`),
   UNIQUE KEY `usual_query` (`UnitID`,`AttributeTypeID`,`ChangeTime`),
   KEY `AttributeTypeID` (`AttributeTypeID`)
-) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=0 ;
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci;
 
 -- --------------------------------------------------------
 
@@ -147,6 +147,18 @@ CREATE TABLE IF NOT EXISTS `groundheight` (
 
 -- --------------------------------------------------------
 
+--
+-- Table structure for table `id_sequence`
+--
+
+CREATE TABLE IF NOT EXISTS `id_sequence` (
+  `TableName` varchar(64) COLLATE utf8_unicode_ci NOT NULL,
+  `NextID` bigint(20) NOT NULL COMMENT 'First id not yet reserved by any IdAllocator',
+  PRIMARY KEY (`TableName`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci COMMENT='Only rows added through IdAllocator may be inserted into these tables';
+
+-- --------------------------------------------------------
+
 --
 -- Table structure for table `map`
 --
@@ -252,13 +264,59 @@ CREATE TABLE IF NOT EXISTS `replay` (
   `MapID` int(11) DEFAULT NULL COMMENT 'Nullable for ExtractActions',
   `ReplayName` varchar(50) COLLATE utf8_unicode_ci NOT NULL,
   `Duration` int(11) NOT NULL,
+  `ContentHash` char(40) COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'hex SHA-1 of the replay file, from ExtractActions',
   PRIMARY KEY (`ReplayID`),
   UNIQUE KEY `ReplayName` (`ReplayName`),
-  KEY `MapID` (`MapID`)
+  KEY `MapID` (`MapID`),
+  KEY `ContentHash` (`ContentHash`)
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci AUTO_INCREMENT=0 ;
 
 -- --------------------------------------------------------
 
+--
+-- Table structure for table `replaycatalog`
+--
+
+CREATE TABLE IF NOT EXISTS `replaycatalog` (
+  `ReplayFileName` varchar(50) COLLATE utf8_unicode_ci NOT NULL,
+  `GameEngine` tinyint(4) NOT NULL COMMENT '0 for StarCraft, 1 for Brood War',
+  `Frames` int(11) NOT NULL,
+  `SaveTime` datetime NOT NULL,
+  `MapName` varchar(32) COLLATE utf8_unicode_ci NOT NULL,
+  `MapWidth` smallint(6) NOT NULL,
+  `MapHeight` smallint(6) NOT NULL,
+  `GameType` smallint(6) NOT NULL,
+  `NumPlayers` tinyint(4) NOT NULL COMMENT 'including any observers',
+  `PlayerNames` varchar(400) COLLATE utf8_unicode_ci NOT NULL,
+  `Races` varchar(12) COLLATE utf8_unicode_ci NOT NULL COMMENT 'race of each player, eg. PT',
+  `Matchup` varchar(24) COLLATE utf8_unicode_ci NOT NULL COMMENT 'races in order, eg. PvT',
+  PRIMARY KEY (`ReplayFileName`),
+  KEY `Matchup` (`Matchup`),
+  KEY `Frames` (`Frames`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci COMMENT='Replay headers, from CatalogReplays';
+
+-- --------------------------------------------------------
+
+--
+-- Table structure for table `replayfile`
+--
+
+CREATE TABLE IF NOT EXISTS `replayfile` (
+  `ReplayFileName` varchar(50) COLLATE utf8_unicode_ci NOT NULL,
+  `FileSize` bigint(20) NOT NULL,
+  `FileModified` bigint(20) NOT NULL COMMENT 'milliseconds since the epoch',
+  `ContentHash` char(40) COLLATE utf8_unicode_ci NOT NULL COMMENT 'hex SHA-1 of the file',
+  `Status` enum('done','failed','duplicate') COLLATE utf8_unicode_ci NOT NULL,
+  `DuplicateOf` varchar(50) COLLATE utf8_unicode_ci DEFAULT NULL COMMENT 'file with the same contents, if Status is duplicate',
+  `NumPlayers` int(11) NOT NULL DEFAULT '0',
+  `NumUnits` int(11) NOT NULL DEFAULT '0',
+  `NumActions` int(11) NOT NULL DEFAULT '0',
+  `Updated` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+  PRIMARY KEY (`ReplayFileName`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci COMMENT='Replay files processed by ExtractActions';
+
+-- --------------------------------------------------------
+
 --
 -- Table structure for table `resourcechange`
 --
@@ -313,11 +371,13 @@ CREATE TABLE IF NOT EXISTS `unitcommandtype` (
 --
 
 CREATE TABLE IF NOT EXISTS `unitgroup` (
-  `UnitGroupID` bigint(20) NOT NULL AUTO_INCREMENT,
+  `UnitGroupID` bigint(20) NOT NULL COMMENT 'Allocated by IdAllocator: not AUTO_INCREMENT, so only ids it reserves are used',
   `UnitID` bigint(20) NOT NULL DEFAULT '0',
+  `GroupHash` bigint(20) DEFAULT NULL COMMENT 'Hash of all the group''s UnitIDs, to find a group by its units',
   PRIMARY KEY (`UnitGroupID`,`UnitID`),
-  KEY `UnitID` (`UnitID`)
-) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci COMMENT='Can be >12 units in a group if one dies' AUTO_INCREMENT=0 ;
+  KEY `UnitID` (`UnitID`),
+  KEY `GroupHash` (`GroupHash`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8 COLLATE=utf8_unicode_ci COMMENT='Can be >12 units in a group if one dies';
 
 -- --------------------------------------------------------
 